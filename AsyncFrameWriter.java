@@ -0,0 +1,208 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes encoded frames through {@link AsynchronousFileChannel}s, so the
+ * converting thread can encode the next frame while the previous one is still
+ * being written. The number of outstanding file writes is bounded; a caller
+ * that has to wait for a free slot is stalled by the output device, and the
+ * time it waits is accumulated in {@link #getStallNanos()} and reported as
+ * {@link WriteStallEvent}.
+ *
+ * {@link AsynchronousFileChannel} has no vectored write, so the buffers passed
+ * to one {@link #write} call are issued back to back at consecutive positions
+ * without returning to the caller in between.
+ */
+public class AsyncFrameWriter implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncFrameWriter.class);
+
+	private final int maxOutstanding;
+
+	private final Semaphore outstanding;
+
+	private final AtomicLong stallNanos = new AtomicLong();
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final AtomicLong filesWritten = new AtomicLong();
+
+	public AsyncFrameWriter(int maxOutstanding) {
+		this.maxOutstanding = maxOutstanding;
+		this.outstanding = new Semaphore(maxOutstanding);
+	}
+
+	/**
+	 * Starts writing <code>buffers</code> to <code>file</code>, replacing its
+	 * content. Blocks only if the maximal number of writes is outstanding.
+	 *
+	 * @return a future completed when the file has been written and closed
+	 */
+	public CompletableFuture<Void> write(File file, ByteBuffer... buffers) throws IOException {
+		if (!outstanding.tryAcquire()) {
+			WriteStallEvent event = new WriteStallEvent();
+			event.begin();
+			long start = System.nanoTime();
+			try {
+				outstanding.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			stallNanos.addAndGet(System.nanoTime() - start);
+			event.record(file.getPath(), -1, null, remaining(buffers));
+		}
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			outstanding.release();
+			throw e;
+		}
+		WriteJob job = new WriteJob(file, channel, buffers);
+		job.next(0L);
+		return job.done;
+	}
+
+	/**
+	 * Blocks until all outstanding writes have completed. Failures are only
+	 * reported through the futures returned by {@link #write}.
+	 */
+	public void flush() throws IOException {
+		try {
+			outstanding.acquire(maxOutstanding);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		outstanding.release(maxOutstanding);
+	}
+
+	/**
+	 * Waits for the given writes and rethrows the first failure.
+	 */
+	public static void await(List<CompletableFuture<Void>> writes) throws IOException {
+		try {
+			for (CompletableFuture<Void> write : writes)
+				write.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for the given writes of a failed conversion, whose failure is
+	 * reported instead of theirs; write failures are only logged.
+	 */
+	public static void awaitAfterFailure(List<CompletableFuture<Void>> writes) {
+		boolean interrupted = false;
+		for (CompletableFuture<Void> write : writes) {
+			while (true) {
+				try {
+					write.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					log.debug("Write failed after failed conversion:", e.getCause());
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public long getStallNanos() {
+		return stallNanos.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getFilesWritten() {
+		return filesWritten.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		log.info("Wrote {} files ({} bytes), stalled {} ms waiting for outstanding writes", filesWritten.get(),
+				bytesWritten.get(), stallNanos.get() / 1000000);
+	}
+
+	private static long remaining(ByteBuffer[] buffers) {
+		long n = 0;
+		for (ByteBuffer buffer : buffers)
+			n += buffer.remaining();
+		return n;
+	}
+
+	private final class WriteJob implements CompletionHandler<Integer, Long> {
+
+		final File file;
+		final AsynchronousFileChannel channel;
+		final ByteBuffer[] buffers;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		int index;
+
+		WriteJob(File file, AsynchronousFileChannel channel, ByteBuffer[] buffers) {
+			this.file = file;
+			this.channel = channel;
+			this.buffers = buffers;
+		}
+
+		void next(long position) {
+			while (index < buffers.length && !buffers[index].hasRemaining())
+				index++;
+			if (index < buffers.length)
+				channel.write(buffers[index], position, position, this);
+			else
+				finish(position, null);
+		}
+
+		@Override
+		public void completed(Integer written, Long position) {
+			next(position + written);
+		}
+
+		@Override
+		public void failed(Throwable e, Long position) {
+			finish(position, e);
+		}
+
+		private void finish(long length, Throwable e) {
+			try {
+				channel.close();
+			} catch (IOException closeFailed) {
+				if (e == null)
+					e = closeFailed;
+			}
+			outstanding.release();
+			if (e != null) {
+				log.warn("Failed to write {}:", file, e);
+				done.completeExceptionally(e);
+			} else {
+				bytesWritten.addAndGet(length);
+				filesWritten.incrementAndGet();
+				done.complete(null);
+			}
+		}
+	}
+}
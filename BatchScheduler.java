@@ -0,0 +1,267 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs <code>mconvert</code>-style batches with one virtual thread per source
+ * file. The virtual threads do the orchestration and all blocking file I/O;
+ * decoding and encoding of frames is handed to a bounded pool of platform
+ * threads sized to the number of cores.
+ *
+ * Memory is bounded by a budget. Each file is admitted once the working set
+ * of one frame, from its {@link ConversionEstimate}, fits into the budget,
+ * and keeps that reservation until it is done, so it can always make
+ * progress; further frames in flight take extra reservations only while the
+ * budget has room. Files queue for admission in the order they are
+ * submitted. A file whose frames alone exceed the budget waits for the whole
+ * budget and runs on its own.
+ *
+ * Frame files are written through an {@link AsyncFrameWriter}, or appended
+ * to a {@link FrameBundle} per source file.
+ *
+ * The frames and the movie of each source file are written to their own
+ * directory below the destination, so concurrent conversions do not
+ * overwrite each other.
+ */
+public class BatchScheduler implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(BatchScheduler.class);
+
+	private final Dcm2Jpg converter;
+
+	private final ExecutorService ioExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+	private final ExecutorService cpuExecutor;
+
+	/** memory budget in KiB, fair so large files are not starved */
+	private final Semaphore budget;
+
+	private final int budgetKiB;
+
+	private final AsyncFrameWriter frameWriter;
+
+	private final Object waitSync = new Object();
+
+	private int pending;
+
+	private int failed;
+
+	public BatchScheduler(Dcm2Jpg converter) {
+		this(converter, Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchScheduler(Dcm2Jpg converter, int cpuThreads) {
+		this(converter, cpuThreads, Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            bytes the frames of concurrent conversions may take
+	 */
+	public BatchScheduler(Dcm2Jpg converter, int cpuThreads, long memoryBudget) {
+		this.converter = converter;
+		this.cpuExecutor = Executors.newFixedThreadPool(cpuThreads);
+		this.budgetKiB = (int) Math.min(Math.max(memoryBudget >> 10, 1), Integer.MAX_VALUE);
+		this.budget = new Semaphore(budgetKiB, true);
+		this.frameWriter = new AsyncFrameWriter(cpuThreads * 4);
+	}
+
+	/**
+	 * Schedules the conversion of <code>src</code>, or of all files below it
+	 * if it is a directory, and returns immediately.
+	 */
+	public void submit(File src, File dest) {
+		if (src.isDirectory()) {
+			dest.mkdirs();
+			for (File file : src.listFiles())
+				schedule(file, new File(dest, file.getName()));
+			return;
+		}
+		schedule(src, dest.isDirectory() ? new File(dest, src.getName()) : dest);
+	}
+
+	private void schedule(File src, File outDir) {
+		if (src.isDirectory())
+			submit(src, outDir);
+		else
+			convertFile(src, outDir);
+	}
+
+	/**
+	 * Schedules the conversion of the single file <code>src</code> into
+	 * <code>outDir</code> and returns immediately.
+	 *
+	 * @return completes when the conversion has finished, exceptionally if
+	 *         it failed
+	 */
+	public CompletableFuture<Void> convertFile(File src, File outDir) {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		synchronized (waitSync) {
+			pending++;
+		}
+		ioExecutor.execute(() -> {
+			boolean success = false;
+			try {
+				convert(src, outDir);
+				System.out.println(MessageFormat.format(Dcm2Jpg.rb.getString("converted"), src, outDir));
+				success = true;
+				done.complete(null);
+			} catch (Exception e) {
+				System.out.println(MessageFormat.format(Dcm2Jpg.rb.getString("failed"), src, e.getMessage()));
+				e.printStackTrace(System.out);
+				done.completeExceptionally(e);
+			} finally {
+				synchronized (waitSync) {
+					pending--;
+					if (!success)
+						failed++;
+					waitSync.notifyAll();
+				}
+			}
+		});
+		return done;
+	}
+
+	private void convert(File src, File outDir) throws Exception {
+		DicomHeader header = DicomHeader.read(src);
+		int[] selected = converter.selectFrames(header);
+		ConversionEstimate estimate = ConversionEstimate.of(header, selected.length);
+		int frameKiB = frameKiB(estimate);
+		if (frameKiB == budgetKiB)
+			log.warn("{}: frame working set {} exceeds the memory budget, converting it exclusively", src,
+					estimate.getFrameWorkingSet());
+		budget.acquire(frameKiB);
+		log.debug("{} admitted: {}", src, estimate);
+		int extra = 0;
+		List<Future<byte[]>> frames = new ArrayList<Future<byte[]>>(selected.length);
+		List<String> fileNames = new ArrayList<String>(selected.length);
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>(selected.length);
+		int written = 0;
+		FrameDecoder decoder = null;
+		FrameBundleWriter bundle = null;
+		boolean success = false;
+		try {
+			Files.createDirectories(outDir.toPath());
+			if (converter.isBundle())
+				bundle = new FrameBundleWriter(new File(outDir, FrameBundle.NAME));
+			decoder = converter.openDecoder(header);
+			for (int i = 0; i < selected.length; i++) {
+				// the admission reservation covers one frame in flight, more
+				// frames need extra reservations; without one, write out own
+				// frames, so the file never waits for others. The timed
+				// tryAcquire does not barge ahead of files waiting for
+				// admission.
+				while (frames.size() - written > extra) {
+					if (budget.tryAcquire(frameKiB, 0, TimeUnit.SECONDS)) {
+						extra++;
+						break;
+					}
+					write(frames, written, selected[written++], outDir, bundle, fileNames, writes);
+				}
+				frames.add(cpuExecutor.submit(encodeTask(decoder, header, selected[i])));
+				while (written < frames.size() && frames.get(written).isDone()) {
+					write(frames, written, selected[written++], outDir, bundle, fileNames, writes);
+					if (extra > 0) {
+						budget.release(frameKiB);
+						extra--;
+					}
+				}
+			}
+			while (written < frames.size())
+				write(frames, written, selected[written++], outDir, bundle, fileNames, writes);
+			success = true;
+		} finally {
+			for (int i = written; i < frames.size(); i++)
+				frames.get(i).cancel(true);
+			budget.release(frameKiB * (1 + extra));
+			if (decoder != null)
+				decoder.close();
+			if (bundle != null) {
+				if (success)
+					bundle.close();
+				else
+					bundle.abort();
+			}
+			if (success)
+				AsyncFrameWriter.await(writes);
+			else
+				AsyncFrameWriter.awaitAfterFailure(writes);
+		}
+		converter.writeMovie(fileNames, outDir, header);
+	}
+
+	/**
+	 * @return reservation for one frame in flight, at most the whole budget
+	 */
+	private int frameKiB(ConversionEstimate estimate) {
+		return (int) Math.min(Math.max(estimate.getFrameWorkingSet() >> 10, 1), budgetKiB);
+	}
+
+	private Callable<byte[]> encodeTask(final FrameDecoder decoder, final DicomHeader header, final int frame) {
+		return () -> {
+			BufferedImage bi = converter.decodeFrame(decoder, header, frame);
+			try {
+				return converter.encodeFrame(bi, header, frame);
+			} finally {
+				decoder.release(bi);
+			}
+		};
+	}
+
+	private void write(List<Future<byte[]>> frames, int i, int frame, File outDir, FrameBundleWriter bundle,
+			List<String> fileNames, List<CompletableFuture<Void>> writes) throws IOException {
+		byte[] data;
+		try {
+			data = frames.get(i).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		if (bundle != null) {
+			bundle.write(frame, data);
+			return;
+		}
+		File file = new File(outDir, "Img" + frame + ".jpeg");
+		writes.add(frameWriter.write(file, ByteBuffer.wrap(data)));
+		fileNames.add(file.getPath());
+	}
+
+	/**
+	 * Blocks until all submitted conversions have finished.
+	 *
+	 * @return number of failed conversions
+	 */
+	public int awaitCompletion() throws InterruptedException {
+		synchronized (waitSync) {
+			while (pending > 0)
+				waitSync.wait();
+			return failed;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		ioExecutor.shutdown();
+		cpuExecutor.shutdown();
+		frameWriter.close();
+	}
+}
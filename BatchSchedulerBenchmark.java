@@ -0,0 +1,67 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the sequential <code>mconvert</code> loop with the virtual-thread
+ * {@link BatchScheduler} on the same input directory. Point it at a slow or
+ * throttled directory (NFS mount, <code>dm-delay</code> device, cgroup
+ * <code>io.max</code> limit) to see the effect of overlapping file I/O.
+ *
+ * <pre>
+ * java BatchSchedulerBenchmark &lt;src-dir&gt; &lt;dest-dir&gt; [threads]
+ * </pre>
+ */
+public class BatchSchedulerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java BatchSchedulerBenchmark <src-dir> <dest-dir> [threads]");
+			System.exit(2);
+		}
+		File src = new File(args[0]);
+		File dest = new File(args[1]);
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		Dcm2Jpg converter = new Dcm2Jpg();
+		converter.initImageWriter("JPEG", null, null, null, null);
+
+		List<File> files = new ArrayList<File>();
+		listFiles(src, files);
+
+		long start = System.nanoTime();
+		for (File file : files) {
+			File outDir = new File(new File(dest, "sequential"), file.getName());
+			outDir.mkdirs();
+			DicomHeader header = DicomHeader.read(file);
+			Dcm2Jpg.writeMovie(converter.convert(header, outDir), new File(outDir, "Sample.mp4").getPath(),
+					converter.movieFrameRate(header));
+		}
+		long sequential = System.nanoTime() - start;
+
+		File vthreads = new File(dest, "vthreads");
+		vthreads.mkdirs();
+		start = System.nanoTime();
+		BatchScheduler scheduler = new BatchScheduler(converter, threads);
+		try {
+			for (File file : files)
+				scheduler.submit(file, vthreads);
+			scheduler.awaitCompletion();
+		} finally {
+			scheduler.close();
+		}
+		long scheduled = System.nanoTime() - start;
+
+		System.out.println(files.size() + " files, " + threads + " decode/encode threads");
+		System.out.println("sequential: " + sequential / 1000000 + " ms");
+		System.out.println("vthreads:   " + scheduled / 1000000 + " ms");
+	}
+
+	private static void listFiles(File src, List<File> files) {
+		if (src.isDirectory()) {
+			for (File file : src.listFiles())
+				listFiles(file, files);
+		} else {
+			files.add(src);
+		}
+	}
+}
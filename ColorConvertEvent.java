@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.ColorConvert")
+@Label("Color Conversion")
+@Description("Decoded frame converted to the output color model")
+class ColorConvertEvent extends ConversionEvent {
+}
@@ -0,0 +1,172 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+
+/**
+ * Bulk color conversion kernels working on raw <code>byte[]</code> rasters,
+ * producing packed <code>TYPE_INT_RGB</code> pixels for the encoder instead of
+ * converting pixel by pixel through <code>ColorModel</code> calls. The
+ * arithmetic runs on {@link VectorColorKernels} if
+ * <code>jdk.incubator.vector</code> is in the boot layer, otherwise on the
+ * scalar kernels of this class; both give identical results.
+ *
+ * YBR_FULL is converted as specified in DICOM PS3.3 C.7.6.3.1.2, in 16 bit
+ * fixed point.
+ */
+final class ColorKernels {
+
+	static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	private ColorKernels() {
+	}
+
+	/**
+	 * Converts the frame to <code>TYPE_INT_RGB</code> with the kernels of this
+	 * class.
+	 *
+	 * @return the converted frame, or <code>null</code> if the raster layout
+	 *         or color space is not one of the kernels'
+	 */
+	static BufferedImage toIntRGB(BufferedImage bi, String pmi) {
+		Raster raster = bi.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferByte) || raster.getDataBuffer().getNumBanks() != 1
+				|| raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+			return null;
+		int csType = bi.getColorModel().getColorSpace().getType();
+		boolean ybr = csType == ColorSpace.TYPE_YCbCr;
+		if (!ybr && csType != ColorSpace.TYPE_RGB || bi.getColorModel().hasAlpha())
+			return null;
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		int n = w * h;
+		byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+		int off = raster.getDataBuffer().getOffset();
+		SampleModel sm = raster.getSampleModel();
+		BufferedImage out;
+		if (sm instanceof ComponentSampleModel) {
+			if (ybr && !"YBR_FULL".equals(pmi))
+				return null;
+			ComponentSampleModel csm = (ComponentSampleModel) sm;
+			int[] bandOffsets = csm.getBandOffsets();
+			if (bandOffsets.length != 3)
+				return null;
+			if (csm.getPixelStride() == 3 && csm.getScanlineStride() == w * 3 && bandOffsets[0] == 0
+					&& bandOffsets[1] == 1 && bandOffsets[2] == 2) {
+				// pixel interleaved
+			} else if (csm.getPixelStride() == 1 && csm.getScanlineStride() == w && bandOffsets[0] == 0
+					&& bandOffsets[1] == n && bandOffsets[2] == 2 * n) {
+				byte[] interleaved = new byte[n * 3];
+				planarToInterleaved(data, off, n, interleaved, 0);
+				data = interleaved;
+				off = 0;
+			} else {
+				return null;
+			}
+			if (data.length - off < n * 3)
+				return null;
+			out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			int[] rgb = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+			if (ybr)
+				ybrFullToIntRgb(data, off, rgb, 0, n);
+			else
+				rgbToIntRgb(data, off, rgb, 0, n);
+		} else if (ybr && "YBR_FULL_422".equals(pmi) && (w & 1) == 0 && data.length - off == n * 2) {
+			out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			ybrFull422ToIntRgb(data, off, ((DataBufferInt) out.getRaster().getDataBuffer()).getData(), 0, n);
+		} else {
+			return null;
+		}
+		return out;
+	}
+
+	/** RGB RGB .. to packed RGB */
+	static void rgbToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+		for (int i = 0, s = srcOff; i < n; i++, s += 3)
+			dst[dstOff + i] = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+	}
+
+	/** RR.. GG.. BB.. to RGB RGB .., <code>n</code> pixels per plane */
+	static void planarToInterleaved(byte[] src, int srcOff, int n, byte[] dst, int dstOff) {
+		for (int i = 0, d = dstOff; i < n; i++, d += 3) {
+			dst[d] = src[srcOff + i];
+			dst[d + 1] = src[srcOff + n + i];
+			dst[d + 2] = src[srcOff + 2 * n + i];
+		}
+	}
+
+	/** Y Cb Cr Y Cb Cr .. to packed RGB */
+	static void ybrFullToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+		if (VECTOR)
+			VectorColorKernels.ybrFullToIntRgb(src, srcOff, dst, dstOff, n);
+		else
+			Scalar.ybrFullToIntRgb(src, srcOff, dst, dstOff, n);
+	}
+
+	/**
+	 * Y1 Y2 Cb Cr .. to packed RGB, replicating each chroma pair to both
+	 * pixels; <code>n</code> must be even.
+	 */
+	static void ybrFull422ToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+		if (VECTOR)
+			VectorColorKernels.ybrFull422ToIntRgb(src, srcOff, dst, dstOff, n);
+		else
+			Scalar.ybrFull422ToIntRgb(src, srcOff, dst, dstOff, n);
+	}
+
+	/**
+	 * Packed RGB to level shifted Y (-128..127) and centered Cb, Cr samples,
+	 * as input of the JPEG forward DCT.
+	 */
+	static void rgbToYCbCr(int[] rgb, int rgbOff, int n, float[] y, float[] cb, float[] cr, int off) {
+		if (VECTOR)
+			VectorColorKernels.rgbToYCbCr(rgb, rgbOff, n, y, cb, cr, off);
+		else
+			Scalar.rgbToYCbCr(rgb, rgbOff, n, y, cb, cr, off);
+	}
+
+	static int ybrToIntRgb(int y, int cb, int cr) {
+		int r = y + ((91881 * cr + 32768) >> 16);
+		int g = y - ((22554 * cb + 46802 * cr + 32768) >> 16);
+		int b = y + ((116130 * cb + 32768) >> 16);
+		return clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+	}
+
+	private static int clamp(int v) {
+		return Math.min(Math.max(v, 0), 255);
+	}
+
+	/** Scalar kernels, also used for the tails of the vector loops. */
+	static final class Scalar {
+
+		private Scalar() {
+		}
+
+		static void ybrFullToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+			for (int i = 0, s = srcOff; i < n; i++, s += 3)
+				dst[dstOff + i] = ybrToIntRgb(src[s] & 0xff, (src[s + 1] & 0xff) - 128, (src[s + 2] & 0xff) - 128);
+		}
+
+		static void ybrFull422ToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+			for (int i = 0, s = srcOff; i < n; i += 2, s += 4) {
+				int cb = (src[s + 2] & 0xff) - 128;
+				int cr = (src[s + 3] & 0xff) - 128;
+				dst[dstOff + i] = ybrToIntRgb(src[s] & 0xff, cb, cr);
+				dst[dstOff + i + 1] = ybrToIntRgb(src[s + 1] & 0xff, cb, cr);
+			}
+		}
+
+		static void rgbToYCbCr(int[] rgb, int rgbOff, int n, float[] y, float[] cb, float[] cr, int off) {
+			for (int i = 0; i < n; i++) {
+				int p = rgb[rgbOff + i];
+				float r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+				y[off + i] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+				cb[off + i] = 0.5f * b - 0.168736f * r - 0.331264f * g;
+				cr[off + i] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+			}
+		}
+	}
+}
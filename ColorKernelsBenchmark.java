@@ -0,0 +1,119 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.util.Random;
+
+/**
+ * Compares the {@link ColorKernels} on one synthetic frame: per pixel
+ * conversion through the <code>ColorModel</code> (<code>getRGB</code>), the
+ * scalar kernels and the Vector API kernels.
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector ColorKernelsBenchmark [width] [height] [iterations]
+ * </pre>
+ */
+public class ColorKernelsBenchmark {
+
+	public static void main(String[] args) {
+		int w = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int n = w * h;
+		byte[] src = new byte[n * 3];
+		new Random(0).nextBytes(src);
+		int[] rgb = new int[n];
+		float[] y = new float[n], cb = new float[n], cr = new float[n];
+
+		BufferedImage bi = new BufferedImage(
+				new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+						ColorModel.OPAQUE, DataBuffer.TYPE_BYTE),
+				Raster.createInterleavedRaster(new DataBufferByte(src, src.length), w, h, w * 3, 3,
+						new int[] { 0, 1, 2 }, null),
+				false, null);
+		long t;
+		System.out.println(w + "x" + h + ", best of " + iterations + " runs, vector kernels "
+				+ (ColorKernels.VECTOR ? "enabled" : "not available"));
+
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			bi.getRGB(0, 0, w, h, rgb, 0, w);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("RGB ColorModel.getRGB", t);
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			ColorKernels.rgbToIntRgb(src, 0, rgb, 0, n);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("RGB rgbToIntRgb", t);
+		byte[] interleaved = new byte[n * 3];
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			ColorKernels.planarToInterleaved(src, 0, n, interleaved, 0);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("planarToInterleaved", t);
+
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			ColorKernels.Scalar.ybrFullToIntRgb(src, 0, rgb, 0, n);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("YBR_FULL scalar", t);
+		if (ColorKernels.VECTOR) {
+			t = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				VectorColorKernels.ybrFullToIntRgb(src, 0, rgb, 0, n);
+				t = Math.min(t, System.nanoTime() - start);
+			}
+			print("YBR_FULL vector", t);
+		}
+
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			ColorKernels.Scalar.ybrFull422ToIntRgb(src, 0, rgb, 0, n);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("YBR_FULL_422 scalar", t);
+		if (ColorKernels.VECTOR) {
+			t = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				VectorColorKernels.ybrFull422ToIntRgb(src, 0, rgb, 0, n);
+				t = Math.min(t, System.nanoTime() - start);
+			}
+			print("YBR_FULL_422 vector", t);
+		}
+
+		t = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			ColorKernels.Scalar.rgbToYCbCr(rgb, 0, n, y, cb, cr, 0);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("RGB to YCbCr scalar", t);
+		if (ColorKernels.VECTOR) {
+			t = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				VectorColorKernels.rgbToYCbCr(rgb, 0, n, y, cb, cr, 0);
+				t = Math.min(t, System.nanoTime() - start);
+			}
+			print("RGB to YCbCr vector", t);
+		}
+	}
+
+	private static void print(String name, long nanos) {
+		System.out.println(String.format("%-24s %8d us", name, nanos / 1000));
+	}
+}
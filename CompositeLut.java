@@ -0,0 +1,292 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+
+/**
+ * The grayscale rendering chain of a file, Modality LUT or rescale, VOI LUT
+ * or window, and Presentation LUT, of the image or of a presentation state,
+ * compiled into one table from stored value to 8 bit output. The table has
+ * one entry per stored value, at most 64K, so rendering a frame read with
+ * <code>ImageReader.readRaster</code> is one indexed pass over its samples
+ * instead of running each stage per pixel and frame.
+ *
+ * The stages follow PS3.3 C.11, with the Presentation LUT Shape of the image
+ * if there is no presentation state, and with the defaults of the dcm4che reader where
+ * the image defines no VOI: the output range of a Modality LUT, or a window
+ * over Smallest to Largest Image Pixel Value. Frames which cannot share one
+ * table are not compiled: enhanced multi-frame images with per-frame
+ * functional groups and auto-windowing without Smallest and Largest Image
+ * Pixel Value.
+ */
+public final class CompositeLut {
+
+	private final byte[] table;
+
+	private final int mask;
+
+	private final int shift;
+
+	private CompositeLut(byte[] table, int mask, int shift) {
+		this.table = table;
+		this.mask = mask;
+		this.shift = shift;
+	}
+
+	/**
+	 * @param prState
+	 *            presentation state, or <code>null</code>
+	 * @param windowWidth
+	 *            explicit window if not 0, overriding all VOI attributes
+	 * @return the compiled table, or <code>null</code> if the frames of the
+	 *         image cannot be rendered by one table
+	 */
+	public static CompositeLut compile(Attributes attrs, Attributes prState, float windowCenter, float windowWidth,
+			int windowIndex, int voiLUTIndex, boolean preferWindow, boolean autoWindowing) {
+		if (attrs.getInt(Tag.SamplesPerPixel, 1) != 1
+				|| !attrs.getString(Tag.PhotometricInterpretation, "").startsWith("MONOCHROME")
+				|| attrs.contains(Tag.PerFrameFunctionalGroupsSequence))
+			return null;
+		int bitsAllocated = attrs.getInt(Tag.BitsAllocated, 8);
+		int bitsStored = attrs.getInt(Tag.BitsStored, bitsAllocated);
+		int highBit = attrs.getInt(Tag.HighBit, bitsStored - 1);
+		if (bitsAllocated != 8 && bitsAllocated != 16 || bitsStored > 16 || highBit >= bitsAllocated
+				|| highBit + 1 < bitsStored)
+			return null;
+		boolean signed = attrs.getInt(Tag.PixelRepresentation, 0) != 0;
+		int size = 1 << bitsStored;
+
+		Attributes modalityAttrs = prState != null
+				&& (prState.contains(Tag.RescaleSlope) || prState.contains(Tag.ModalityLUTSequence)) ? prState
+						: attrs;
+		double[] modality = new double[size];
+		Lut modalityLUT = Lut.of(item(modalityAttrs, Tag.ModalityLUTSequence, 0), signed);
+		double slope = modalityAttrs.getDouble(Tag.RescaleSlope, 1);
+		double intercept = modalityAttrs.getDouble(Tag.RescaleIntercept, 0);
+		for (int i = 0; i < size; i++) {
+			int stored = signed ? i << (32 - bitsStored) >> (32 - bitsStored) : i;
+			modality[i] = modalityLUT != null ? modalityLUT.get(stored) : stored * slope + intercept;
+		}
+
+		Voi voi = voi(attrs, prState, windowCenter, windowWidth, windowIndex, voiLUTIndex, preferWindow,
+				autoWindowing, modality, modalityLUT, signed, slope, intercept);
+		if (voi == null)
+			return null;
+
+		Lut presentationLUT = prState != null ? Lut.of(item(prState, Tag.PresentationLUTSequence, 0), false) : null;
+		// the Presentation LUT Shape of an image already accounts for MONOCHROME1
+		String shape = (prState != null ? prState : attrs).getString(Tag.PresentationLUTShape, null);
+		boolean inverse = shape != null || prState != null ? "INVERSE".equals(shape)
+				: "MONOCHROME1".equals(attrs.getString(Tag.PhotometricInterpretation, null));
+		byte[] table = new byte[size];
+		for (int i = 0; i < size; i++) {
+			double v = voi.apply(modality[i]);
+			if (presentationLUT != null)
+				v = presentationLUT.get((int) Math.round(v * (presentationLUT.entries - 1)) + presentationLUT.first)
+						/ presentationLUT.maxOut;
+			if (inverse)
+				v = 1 - v;
+			table[i] = (byte) Math.round(Math.max(0, Math.min(1, v)) * 255);
+		}
+		return new CompositeLut(table, size - 1, highBit + 1 - bitsStored);
+	}
+
+	private static Attributes item(Attributes attrs, int tag, int index) {
+		Sequence seq = attrs.getSequence(tag);
+		return seq != null && !seq.isEmpty() ? seq.get(Math.min(Math.max(index, 0), seq.size() - 1)) : null;
+	}
+
+	/** LUT Descriptor and LUT Data of a Modality, VOI or Presentation LUT item */
+	private static final class Lut {
+		final int entries, first;
+		final double maxOut;
+		final int[] data;
+
+		private Lut(int entries, int first, int bits, int[] data) {
+			this.entries = entries;
+			this.first = first;
+			this.maxOut = (1 << bits) - 1;
+			this.data = data;
+		}
+
+		/**
+		 * @param signed
+		 *            if the first mapped value is signed
+		 */
+		static Lut of(Attributes item, boolean signed) {
+			if (item == null)
+				return null;
+			int[] desc = item.getInts(Tag.LUTDescriptor);
+			int[] data = item.getInts(Tag.LUTData);
+			if (desc == null || desc.length != 3 || data == null)
+				return null;
+			int entries = desc[0] == 0 ? 65536 : desc[0];
+			if (data.length < entries) {
+				// entries of 8 bits packed two per OW word
+				if (desc[2] > 8 || data.length * 2 < entries)
+					return null;
+				int[] unpacked = new int[entries];
+				for (int i = 0; i < entries; i++)
+					unpacked[i] = (data[i >> 1] >> ((i & 1) << 3)) & 0xff;
+				data = unpacked;
+			}
+			return new Lut(entries, signed ? (short) desc[1] : desc[1], desc[2], data);
+		}
+
+		int get(int value) {
+			return data[Math.max(0, Math.min(entries - 1, value - first))];
+		}
+	}
+
+	/** VOI stage, mapping modality values to [0, 1] */
+	private static abstract class Voi {
+		abstract double apply(double x);
+	}
+
+	private static Voi voi(Attributes attrs, Attributes prState, float windowCenter, float windowWidth,
+			int windowIndex, int voiLUTIndex, boolean preferWindow, boolean autoWindowing, double[] modality,
+			Lut modalityLUT, boolean signed, double slope, double intercept) {
+		if (windowWidth != 0)
+			return window(windowCenter, windowWidth, null);
+		Attributes voiAttrs = prState != null ? item(prState, Tag.SoftcopyVOILUTSequence, 0) : attrs;
+		if (voiAttrs != null) {
+			float[] centers = voiAttrs.getFloats(Tag.WindowCenter);
+			float[] widths = voiAttrs.getFloats(Tag.WindowWidth);
+			boolean hasWindow = centers != null && widths != null && centers.length > 0
+					&& widths.length == centers.length;
+			// the first mapped value is a modality value, signed with signed stored values
+			Lut voiLUT = Lut.of(item(voiAttrs, Tag.VOILUTSequence, voiLUTIndex), signed && modalityLUT == null);
+			if (hasWindow && (preferWindow || voiLUT == null)) {
+				int i = windowIndex < centers.length ? Math.max(windowIndex, 0) : 0;
+				return window(centers[i], widths[i], voiAttrs.getString(Tag.VOILUTFunction, i, null));
+			}
+			if (voiLUT != null)
+				return lut(voiLUT);
+		}
+		if (modalityLUT != null) {
+			// the reader does not auto-window the output of a Modality LUT but
+			// maps its whole range
+			final double maxOut = modalityLUT.maxOut;
+			return new Voi() {
+				@Override
+				double apply(double x) {
+					return x / maxOut;
+				}
+			};
+		}
+		if (autoWindowing) {
+			if (!attrs.contains(Tag.SmallestImagePixelValue) || !attrs.contains(Tag.LargestImagePixelValue))
+				return null;
+			// pixel values are stored values, windowed like the reader does,
+			// including the integer division of the center
+			int bitsStored = attrs.getInt(Tag.BitsStored, 8);
+			int smallest = stored(attrs.getInt(Tag.SmallestImagePixelValue, 0), bitsStored, signed);
+			int largest = stored(attrs.getInt(Tag.LargestImagePixelValue, 0), bitsStored, signed);
+			if (smallest > largest) {
+				int t = smallest;
+				smallest = largest;
+				largest = t;
+			}
+			return window((smallest + largest + 1) / 2 * slope + intercept,
+					Math.abs((largest + 1 - smallest) * slope), null);
+		}
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (double m : modality) {
+			min = Math.min(min, m);
+			max = Math.max(max, m);
+		}
+		return window((min + max + 1) / 2, Math.max(max - min + 1, 1), null);
+	}
+
+	private static int stored(int value, int bitsStored, boolean signed) {
+		return signed ? value << (32 - bitsStored) >> (32 - bitsStored) : value & ((1 << bitsStored) - 1);
+	}
+
+	private static Voi window(final double c, final double w, String function) {
+		if ("SIGMOID".equals(function))
+			return new Voi() {
+				@Override
+				double apply(double x) {
+					return 1 / (1 + Math.exp(-4 * (x - c) / w));
+				}
+			};
+		if ("LINEAR_EXACT".equals(function))
+			return new Voi() {
+				@Override
+				double apply(double x) {
+					return Math.max(0, Math.min(1, (x - c) / w + 0.5));
+				}
+			};
+		return new Voi() {
+			@Override
+			double apply(double x) {
+				if (w <= 1)
+					return x < c - 0.5 ? 0 : 1;
+				return Math.max(0, Math.min(1, (x - (c - 0.5)) / (w - 1) + 0.5));
+			}
+		};
+	}
+
+	private static Voi lut(final Lut voiLUT) {
+		return new Voi() {
+			@Override
+			double apply(double x) {
+				return voiLUT.get((int) Math.round(x)) / voiLUT.maxOut;
+			}
+		};
+	}
+
+	/**
+	 * Renders a frame of stored values, as returned by
+	 * <code>readRaster</code>, into a new <code>TYPE_BYTE_GRAY</code> image.
+	 * Bits outside Bits Stored, like embedded overlays, are ignored.
+	 */
+	public BufferedImage apply(Raster raster) {
+		int w = raster.getWidth(), h = raster.getHeight();
+		BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] dst = ((DataBufferByte) out.getRaster().getDataBuffer()).getData();
+		DataBuffer db = raster.getDataBuffer();
+		int type = db.getDataType();
+		if (raster.getNumBands() != 1 || !(raster.getSampleModel() instanceof ComponentSampleModel)
+				|| ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() != 1
+				|| type != DataBuffer.TYPE_BYTE && type != DataBuffer.TYPE_USHORT && type != DataBuffer.TYPE_SHORT) {
+			int[] row = new int[w];
+			for (int y = 0; y < h; y++) {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + y, w, 1, 0, row);
+				for (int x = 0; x < w; x++)
+					dst[y * w + x] = table[(row[x] >> shift) & mask];
+			}
+			return out;
+		}
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		int tx = raster.getSampleModelTranslateX(), ty = raster.getSampleModelTranslateY();
+		for (int y = 0; y < h; y++) {
+			int src = db.getOffset() + sm.getOffset(-tx, y - ty);
+			int d = y * w;
+			switch (type) {
+			case DataBuffer.TYPE_BYTE:
+				byte[] b = ((DataBufferByte) db).getData();
+				for (int x = 0; x < w; x++)
+					dst[d + x] = table[((b[src + x] & 0xff) >> shift) & mask];
+				break;
+			case DataBuffer.TYPE_USHORT:
+				short[] u = ((DataBufferUShort) db).getData();
+				for (int x = 0; x < w; x++)
+					dst[d + x] = table[((u[src + x] & 0xffff) >> shift) & mask];
+				break;
+			default:
+				short[] s = ((DataBufferShort) db).getData();
+				for (int x = 0; x < w; x++)
+					dst[d + x] = table[((s[src + x] & 0xffff) >> shift) & mask];
+			}
+		}
+		return out;
+	}
+}
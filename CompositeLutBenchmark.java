@@ -0,0 +1,106 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReadParam;
+
+/**
+ * Compares rendering the frames of a grayscale DICOM file by the ImageIO
+ * DICOM reader, with the read parameters Dcm2Jpg passes by default, against
+ * reading the stored values and rendering them with a {@link CompositeLut}.
+ * An optional presentation state is applied by both.
+ *
+ * <pre>
+ * java CompositeLutBenchmark CT-MONO2-16-ankle.dcm [iterations] [presentation-state]
+ * </pre>
+ */
+public class CompositeLutBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java CompositeLutBenchmark <dicom-file> [iterations] [presentation-state]");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		Attributes prState = args.length > 2 ? DicomHeader.read(new File(args[2])).getAttributes() : null;
+		Attributes attrs = DicomHeader.read(file).getAttributes();
+
+		long compile = Long.MAX_VALUE;
+		CompositeLut lut = null;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			lut = CompositeLut.compile(attrs, prState, 0, 0, 0, 0, true, true);
+			compile = Math.min(compile, System.nanoTime() - start);
+		}
+		if (lut == null) {
+			System.err.println(file + ": rendering cannot be compiled into one table");
+			System.exit(1);
+		}
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("DICOM").next();
+		ImageInputStream iis = ImageIO.createImageInputStream(file);
+		try {
+			reader.setInput(iis);
+			DicomImageReadParam param = (DicomImageReadParam) reader.getDefaultReadParam();
+			param.setPresentationState(prState);
+			int frames = reader.getNumImages(true);
+			long read = Long.MAX_VALUE, readRaster = Long.MAX_VALUE, apply = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				for (int frame = 0; frame < frames; frame++)
+					reader.read(frame, param);
+				read = Math.min(read, System.nanoTime() - start);
+				start = System.nanoTime();
+				for (int frame = 0; frame < frames; frame++)
+					lut.apply(reader.readRaster(frame, param));
+				readRaster = Math.min(readRaster, System.nanoTime() - start);
+			}
+			Raster raster = reader.readRaster(0, param);
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				lut.apply(raster);
+				apply = Math.min(apply, System.nanoTime() - start);
+			}
+
+			System.out.println(file + ": " + frames + " frames " + raster.getWidth() + "x" + raster.getHeight()
+					+ (prState != null ? ", with presentation state" : "") + ", best of " + iterations + " runs");
+			print("compile table", compile, 1);
+			print("read, rendered by reader", read, frames);
+			print("readRaster + table", readRaster, frames);
+			print("table only", apply, 1);
+			diff(reader.read(0, param), lut.apply(raster));
+		} finally {
+			iis.close();
+		}
+	}
+
+	private static void print(String name, long nanos, int frames) {
+		System.out.println(String.format("%-26s %8d us/frame", name, nanos / frames / 1000));
+	}
+
+	/** reports how far the table rendering of the first frame is from the reader's */
+	private static void diff(BufferedImage expected, BufferedImage actual) {
+		Raster r = expected.getRaster();
+		byte[] a = ((DataBufferByte) actual.getRaster().getDataBuffer()).getData();
+		int w = actual.getWidth(), h = actual.getHeight();
+		int[] row = new int[w];
+		int differing = 0, max = 0;
+		for (int y = 0; y < h; y++) {
+			r.getSamples(0, y, w, 1, 0, row);
+			for (int x = 0; x < w; x++) {
+				int d = Math.abs(row[x] - (a[y * w + x] & 0xff));
+				if (d != 0)
+					differing++;
+				max = Math.max(max, d);
+			}
+		}
+		System.out.println("first frame: " + differing + " of " + w * h + " pixels differ, by at most " + max);
+	}
+}
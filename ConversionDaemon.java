@@ -0,0 +1,204 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.net.ExtendedSocketOptions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Conversion daemon listening on a Unix domain socket, so scripts converting
+ * single files do not pay JVM startup, ImageIO plugin discovery and JIT
+ * warm-up per file. Readers, writers and thread pools stay alive in the
+ * {@link BatchScheduler} and are shared by all requests; the rendering and
+ * encoding options are the ones the daemon was started with.
+ *
+ * The protocol is line based UTF-8, so <code>nc -U</code> works as a client
+ * as well as {@link Dcm2JpgClient}: the client sends absolute source paths
+ * and the destination path, one per line, then an empty line. The daemon
+ * answers with one line per converted or failed file, as the command line
+ * tool prints them, and finally <code>exit &lt;status&gt;</code>.
+ *
+ * Requests run with the privileges of the daemon, so the socket is readable
+ * and writable by its owner only and connections of other users are refused.
+ */
+public class ConversionDaemon implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(ConversionDaemon.class);
+
+	private final BatchScheduler scheduler;
+
+	private final Path socket;
+
+	private final ServerSocketChannel server;
+
+	private final String owner;
+
+	public ConversionDaemon(BatchScheduler scheduler, File socket) throws IOException {
+		this.scheduler = scheduler;
+		this.socket = socket.toPath().toAbsolutePath();
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(this.socket);
+		if (Files.exists(this.socket)) {
+			if (isListening(address))
+				throw new IOException("Daemon already listening on " + socket);
+			// left behind by a daemon that was killed
+			Files.delete(this.socket);
+		}
+		this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(address);
+			// requests run with the privileges of the daemon, so only its owner may connect
+			Files.setPosixFilePermissions(this.socket, PosixFilePermissions.fromString("rw-------"));
+			this.owner = Files.getOwner(this.socket).getName();
+		} catch (IOException | UnsupportedOperationException e) {
+			server.close();
+			Files.deleteIfExists(this.socket);
+			throw e instanceof IOException ? (IOException) e
+					: new IOException("Cannot restrict access to " + socket + " to its owner", e);
+		}
+	}
+
+	private static boolean isListening(UnixDomainSocketAddress address) {
+		try {
+			SocketChannel.open(address).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks the peer credentials of a connection, which also rejects
+	 * clients which connected before the permissions of the socket were set.
+	 */
+	private boolean isOwner(SocketChannel ch) throws IOException {
+		UserPrincipal peer;
+		try {
+			peer = ch.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+		} catch (UnsupportedOperationException e) {
+			// the socket permissions alone restrict access
+			return true;
+		}
+		return peer.getName().equals(owner);
+	}
+
+	/**
+	 * Accepts requests, each on its own virtual thread, until {@link #close}
+	 * is called from another thread.
+	 */
+	public void run() throws IOException {
+		log.info("Listening on {}", socket);
+		try {
+			for (;;) {
+				final SocketChannel ch = server.accept();
+				Thread.ofVirtual().name("request").start(() -> serve(ch));
+			}
+		} catch (ClosedChannelException e) {
+			// closed
+		}
+	}
+
+	private void serve(SocketChannel ch) {
+		try (SocketChannel c = ch) {
+			if (!isOwner(c)) {
+				log.warn("Rejected request of another user");
+				return;
+			}
+			BufferedReader in = new BufferedReader(Channels.newReader(c, StandardCharsets.UTF_8));
+			final PrintWriter out = new PrintWriter(Channels.newWriter(c, StandardCharsets.UTF_8));
+			List<String> args = new ArrayList<String>();
+			for (String line; (line = in.readLine()) != null && !line.isEmpty();)
+				args.add(line);
+			if (args.size() < 2) {
+				out.println(Dcm2Jpg.rb.getString("missing"));
+				out.println("exit 2");
+				out.flush();
+				return;
+			}
+			File dest = new File(args.get(args.size() - 1));
+			if ((args.size() > 2 || new File(args.get(0)).isDirectory()) && !dest.isDirectory()) {
+				out.println(MessageFormat.format(Dcm2Jpg.rb.getString("nodestdir"), dest));
+				out.println("exit 2");
+				out.flush();
+				return;
+			}
+			List<CompletableFuture<Void>> jobs = new ArrayList<CompletableFuture<Void>>();
+			final AtomicInteger failed = new AtomicInteger();
+			for (String src : args.subList(0, args.size() - 1))
+				submit(new File(src), dest, jobs, out, failed);
+			CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[jobs.size()])).exceptionally(e -> null)
+					.join();
+			synchronized (out) {
+				out.println("exit " + (failed.get() > 0 ? 1 : 0));
+				out.flush();
+			}
+		} catch (IOException e) {
+			log.warn("Request failed:", e);
+		}
+	}
+
+	/** schedules conversions with the output layout of {@link BatchScheduler#submit} */
+	private void submit(File src, File dest, List<CompletableFuture<Void>> jobs, final PrintWriter out,
+			final AtomicInteger failed) {
+		if (src.isDirectory()) {
+			dest.mkdirs();
+			File[] files = src.listFiles();
+			if (files != null)
+				for (File file : files)
+					if (file.isDirectory())
+						submit(file, new File(dest, file.getName()), jobs, out, failed);
+					else
+						convert(file, new File(dest, file.getName()), jobs, out, failed);
+			return;
+		}
+		convert(src, dest.isDirectory() ? new File(dest, src.getName()) : dest, jobs, out, failed);
+	}
+
+	private void convert(final File src, final File outDir, List<CompletableFuture<Void>> jobs,
+			final PrintWriter out, final AtomicInteger failed) {
+		jobs.add(scheduler.convertFile(src, outDir).whenComplete((v, e) -> {
+			String message = e == null ? MessageFormat.format(Dcm2Jpg.rb.getString("converted"), src, outDir)
+					: MessageFormat.format(Dcm2Jpg.rb.getString("failed"), src,
+							(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e).getMessage());
+			if (e != null)
+				failed.incrementAndGet();
+			synchronized (out) {
+				out.println(message);
+				out.flush();
+			}
+		}));
+	}
+
+	/**
+	 * Stops accepting requests and removes the socket file. Requests being
+	 * served are completed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			server.close();
+		} finally {
+			Files.deleteIfExists(socket);
+		}
+	}
+}
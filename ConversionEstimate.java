@@ -0,0 +1,121 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+
+/**
+ * Pre-flight estimate of the cost of converting one file, computed from its
+ * header alone: Rows, Columns, Samples per Pixel, Bits Allocated, the number
+ * of frames to convert and the transfer syntax. The memory figures are the
+ * ones the scheduler admits conversions by; the time and output size figures
+ * are rough, from per pixel costs measured with the JDK JPEG writer at the
+ * default quality.
+ */
+public final class ConversionEstimate {
+
+	private static final Set<String> UNCOMPRESSED = new HashSet<String>(Arrays.asList(new String[] {
+			UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian, UID.ExplicitVRBigEndian,
+			UID.DeflatedExplicitVRLittleEndian }));
+
+	/** encoder nanoseconds per output pixel, grayscale and color */
+	private static final double ENCODE_NS_GRAY = 6, ENCODE_NS_COLOR = 12;
+
+	/** decoder nanoseconds per source pixel, uncompressed, RLE and other */
+	private static final double DECODE_NS_RAW = 2, DECODE_NS_RLE = 5, DECODE_NS_COMPRESSED = 15;
+
+	/** output bits per pixel, grayscale and color */
+	private static final double JPEG_BITS_GRAY = 1.0, JPEG_BITS_COLOR = 1.5;
+
+	private final int frames;
+
+	private final long pixels;
+
+	private final long decodedFrameBytes;
+
+	private final long renderedFrameBytes;
+
+	private final long encodedFrameBytes;
+
+	private final long cpuNanos;
+
+	private ConversionEstimate(int frames, long pixels, long decodedFrameBytes, long renderedFrameBytes,
+			long encodedFrameBytes, long cpuNanos) {
+		this.frames = frames;
+		this.pixels = pixels;
+		this.decodedFrameBytes = decodedFrameBytes;
+		this.renderedFrameBytes = renderedFrameBytes;
+		this.encodedFrameBytes = encodedFrameBytes;
+		this.cpuNanos = cpuNanos;
+	}
+
+	/**
+	 * @param frames
+	 *            number of frames to convert, after frame selection
+	 */
+	public static ConversionEstimate of(DicomHeader header, int frames) {
+		Attributes attrs = header.getAttributes();
+		long pixels = Math.multiplyFull(attrs.getInt(Tag.Rows, 0), attrs.getInt(Tag.Columns, 0));
+		int samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+		int bytesAllocated = (attrs.getInt(Tag.BitsAllocated, 8) + 7) / 8;
+		boolean color = samples > 1
+				|| "PALETTE COLOR".equals(attrs.getString(Tag.PhotometricInterpretation, null));
+		String tsuid = header.getTransferSyntax();
+		double decodeNs = UNCOMPRESSED.contains(tsuid) ? DECODE_NS_RAW
+				: UID.RLELossless.equals(tsuid) ? DECODE_NS_RLE : DECODE_NS_COMPRESSED;
+		double encodeNs = color ? ENCODE_NS_COLOR : ENCODE_NS_GRAY;
+		long decoded = pixels * samples * bytesAllocated;
+		// color frames are converted to int RGB, grayscale ones rendered to 8 bit
+		long rendered = color ? pixels * 4 : pixels;
+		long encoded = (long) Math.ceil(pixels * (color ? JPEG_BITS_COLOR : JPEG_BITS_GRAY) / 8);
+		long cpuNanos = (long) (frames * pixels * (decodeNs + encodeNs));
+		return new ConversionEstimate(frames, pixels, decoded, rendered, encoded, cpuNanos);
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public long getPixelsPerFrame() {
+		return pixels;
+	}
+
+	/**
+	 * @return bytes held while one frame is in flight: the decoded raster,
+	 *         the rendered frame and its JPEG data
+	 */
+	public long getFrameWorkingSet() {
+		return decodedFrameBytes + renderedFrameBytes + encodedFrameBytes;
+	}
+
+	/**
+	 * @return bytes of all selected frames decoded
+	 */
+	public long getDecodedBytes() {
+		return decodedFrameBytes * frames;
+	}
+
+	/**
+	 * @return estimated size of the frame files
+	 */
+	public long getOutputBytes() {
+		return encodedFrameBytes * frames;
+	}
+
+	/**
+	 * @return estimated decode and encode time on one core
+	 */
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,
+				"%d frames, %.1f MB decoded, %.1f MB per frame in flight, ~%.1f s CPU, ~%.1f MB output", frames,
+				getDecodedBytes() / 1e6, getFrameWorkingSet() / 1e6, cpuNanos / 1e9, getOutputBytes() / 1e6);
+	}
+}
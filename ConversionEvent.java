@@ -0,0 +1,52 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Base class of the JDK Flight Recorder events emitted by the conversion
+ * pipeline. Each stage (header parse, fragment index build, decode, color
+ * conversion, encode and mux/write) has its own event type, so a recording
+ * shows which files and frames were expensive. Callers should only fill the
+ * fields through {@link #record}, which skips all work if the event is
+ * disabled.
+ */
+@Category({ "DCM2MP4", "Conversion" })
+@StackTrace(false)
+abstract class ConversionEvent extends Event {
+
+	@Label("File")
+	String file;
+
+	@Label("Frame")
+	@Description("Zero based frame index, -1 if the event is not frame related")
+	int frame = -1;
+
+	@Label("Transfer Syntax")
+	String transferSyntax;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+	final void record(String file, int frame, String transferSyntax, long bytes) {
+		end();
+		if (shouldCommit()) {
+			this.file = file;
+			this.frame = frame;
+			this.transferSyntax = transferSyntax;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+	static long sizeOf(BufferedImage bi) {
+		DataBuffer db = bi.getRaster().getDataBuffer();
+		return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+}
@@ -39,15 +39,38 @@
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -55,8 +78,12 @@ import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.media.MediaLocator;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
@@ -80,22 +107,53 @@ import com.sun.media.imageioimpl.plugins.jpeg2000.ImageInputStreamWrapper;
  */
 public class Dcm2Jpg {
 
-	private static ResourceBundle rb = ResourceBundle.getBundle("org.dcm4che3.tool.dcm2jpg.messages");
+	static ResourceBundle rb = ResourceBundle.getBundle("org.dcm4che3.tool.dcm2jpg.messages");
+
+	/** numbers the presentation states set, for {@link #renderingKey} */
+	private static final AtomicLong presentationStates = new AtomicLong();
+
+	static {
+		// -E VectorJpegImageWriter, with --add-modules jdk.incubator.vector
+		VectorJpegImageWriterSpi.registerIfSupported();
+	}
 
 	private String suffix;
-	private int frame = 1;
+	private int firstFrame = 1;
+	private int lastFrame = Integer.MAX_VALUE;
+	private float targetFrameRate;
+	private boolean bundle;
 	private int windowIndex;
 	private int voiLUTIndex;
+	private boolean voiLUTSelected;
 	private boolean preferWindow = true;
 	private float windowCenter;
 	private float windowWidth;
 	private boolean autoWindowing = true;
 	private Attributes prState;
-	private final ImageReader imageReader = ImageIO.getImageReadersByFormatName("DICOM").next();
-	private ImageWriter imageWriter;
-	private ImageWriteParam imageWriteParam;
+	private long prStateNumber;
+	private final ThreadLocal<ImageWriter> imageWriter = new ThreadLocal<ImageWriter>() {
+		@Override
+		protected ImageWriter initialValue() {
+			try {
+				return imageWriterSpi.createWriterInstance();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	};
+	private ImageWriterSpi imageWriterSpi;
+	private String compressionType;
+	private Number quality;
+	private static final int DECODE_AHEAD = Runtime.getRuntime().availableProcessors();
+
+	private static final ColorModel BYTE_GRAY = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY)
+			.getColorModel();
+
+	private final AsyncFrameWriter frameWriter = new AsyncFrameWriter(8);
 	private int overlayActivationMask = 0xffff;
 	private int overlayGrayscaleValue = 0xffff;
+	private int resolutionReduction;
+	private boolean fastLossless;
 
 	public void initImageWriter(String formatName, String suffix, String clazz, String compressionType,
 			Number quality) {
@@ -103,7 +161,7 @@ public class Dcm2Jpg {
 		if (!imageWriters.hasNext())
 			throw new IllegalArgumentException(MessageFormat.format(rb.getString("formatNotSupported"), formatName));
 		this.suffix = suffix != null ? suffix : formatName.toLowerCase();
-		imageWriter = imageWriters.next();
+		ImageWriter imageWriter = imageWriters.next();
 		if (clazz != null)
 			while (!clazz.equals(imageWriter.getClass().getName()))
 				if (imageWriters.hasNext())
@@ -111,18 +169,88 @@ public class Dcm2Jpg {
 				else
 					throw new IllegalArgumentException(
 							MessageFormat.format(rb.getString("noSuchImageWriter"), clazz, formatName));
-		imageWriteParam = imageWriter.getDefaultWriteParam();
-		if (compressionType != null || quality != null) {
-			imageWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-			if (compressionType != null)
-				imageWriteParam.setCompressionType(compressionType);
-			if (quality != null)
-				imageWriteParam.setCompressionQuality(quality.floatValue());
-		}
+		// other threads get their own instance from the same provider
+		this.imageWriterSpi = imageWriter.getOriginatingProvider();
+		this.imageWriter.set(imageWriter);
+		this.compressionType = compressionType;
+		this.quality = quality;
 	}
 
 	public final void setFrame(int frame) {
-		this.frame = frame;
+		setFrameRange(frame, frame);
+	}
+
+	/**
+	 * Restricts the conversion of multi-frame files to the frames
+	 * <code>first</code> to <code>last</code>, one based and inclusive.
+	 */
+	public final void setFrameRange(int first, int last) {
+		if (first < 1 || last < first)
+			throw new IllegalArgumentException("frames: " + first + ":" + last);
+		this.firstFrame = first;
+		this.lastFrame = last;
+	}
+
+	/**
+	 * Subsamples files with a higher frame rate to <code>fps</code> frames
+	 * per second; 0 keeps all frames.
+	 */
+	public final void setTargetFrameRate(float fps) {
+		if (fps < 0)
+			throw new IllegalArgumentException("fps: " + fps);
+		this.targetFrameRate = fps;
+	}
+
+	/**
+	 * Writes the frames of each file into one {@link FrameBundle} instead of
+	 * one file per frame.
+	 */
+	public final void setBundle(boolean bundle) {
+		this.bundle = bundle;
+	}
+
+	public final boolean isBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return frame rate of the movie of the file: its own frame rate, 10 if
+	 *         it does not specify one, limited to the target frame rate
+	 */
+	float movieFrameRate(DicomHeader header) {
+		float rate = header.getFrameRate(10);
+		return targetFrameRate > 0 ? Math.min(rate, targetFrameRate) : rate;
+	}
+
+	/**
+	 * Returns the zero based indices of the frames of the file to convert, in
+	 * order: the frame range, subsampled to the target frame rate. Decoders
+	 * are only asked for these frames, so the other frames are neither
+	 * decoded nor, for encapsulated data located through the fragment index,
+	 * read.
+	 */
+	int[] selectFrames(DicomHeader header) {
+		return selectFrames(header, movieFrameRate(header));
+	}
+
+	/**
+	 * Returns the frames of the file shown at each frame time of a movie of
+	 * <code>movieFrameRate</code>, in the frame range: subsampled if the
+	 * file has a higher frame rate, repeated if it has a lower one, so the
+	 * file plays at its own speed.
+	 */
+	int[] selectFrames(DicomHeader header, float movieFrameRate) {
+		int numberOfFrames = header.getNumberOfFrames();
+		int start = Math.min(firstFrame - 1, numberOfFrames);
+		int end = Math.min(lastFrame, numberOfFrames);
+		int length = Math.max(end - start, 0);
+		// keep the frame shown at each output frame time
+		double step = (double) header.getFrameRate(10) / movieFrameRate;
+		int[] frames = new int[step > 1 ? (int) Math.ceil(length / step)
+				: step < 1 ? (int) Math.round(length / step) : length];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = start + Math.min((int) (i * step + 1e-9), length - 1);
+		return frames;
 	}
 
 	public final void setWindowCenter(float windowCenter) {
@@ -139,6 +267,7 @@ public class Dcm2Jpg {
 
 	public final void setVOILUTIndex(int voiLUTIndex) {
 		this.voiLUTIndex = voiLUTIndex;
+		this.voiLUTSelected = true;
 	}
 
 	public final void setPreferWindow(boolean preferWindow) {
@@ -151,6 +280,7 @@ public class Dcm2Jpg {
 
 	public final void setPresentationState(Attributes prState) {
 		this.prState = prState;
+		this.prStateNumber = prState != null ? presentationStates.incrementAndGet() : 0;
 	}
 
 	public void setOverlayActivationMask(int overlayActivationMask) {
@@ -161,6 +291,36 @@ public class Dcm2Jpg {
 		this.overlayGrayscaleValue = overlayGrayscaleValue;
 	}
 
+	/**
+	 * @param resolutionReduction
+	 *            number of the highest resolution levels of JPEG 2000 frames
+	 *            not decoded, halving the frame size with each level
+	 */
+	public void setResolutionReduction(int resolutionReduction) {
+		this.resolutionReduction = resolutionReduction;
+	}
+
+	/**
+	 * @param fastLossless
+	 *            decode grayscale JPEG Lossless frames with
+	 *            {@link JpegLosslessDecoder} instead of the ImageIO reader
+	 */
+	public void setFastLossless(boolean fastLossless) {
+		this.fastLossless = fastLossless;
+	}
+
+	/**
+	 * Identifies the current rendering and encoding options, so frames
+	 * converted with different options are cached under different keys.
+	 */
+	String renderingKey() {
+		return windowCenter + "/" + windowWidth + "/" + autoWindowing + "/" + windowIndex + "/" + voiLUTIndex + "/"
+				+ voiLUTSelected + "/" + preferWindow + "/" + prStateNumber + "/"
+				+ Integer.toHexString(overlayActivationMask) + "/" + Integer.toHexString(overlayGrayscaleValue) + "/"
+				+ (imageWriterSpi != null ? imageWriterSpi.getClass().getName() : null) + "/" + compressionType + "/"
+				+ quality + "/" + resolutionReduction;
+	}
+
 	@SuppressWarnings("static-access")
 	private static CommandLine parseComandLine(String[] args) throws ParseException {
 		Options opts = new Options();
@@ -174,6 +334,16 @@ public class Dcm2Jpg {
 				Option.builder().hasArg().argName("suffix").desc(rb.getString("suffix")).longOpt("suffix").build());
 		opts.addOption(Option.builder().hasArg().argName("number").type(PatternOptionBuilder.NUMBER_VALUE)
 				.desc(rb.getString("frame")).longOpt("frame").build());
+		opts.addOption(Option.builder().hasArg().argName("first:last")
+				.desc("convert only frames <first> to <last> of multi-frame files, one based and inclusive; "
+						+ "either bound may be omitted")
+				.longOpt("frames").build());
+		opts.addOption(Option.builder().hasArg().argName("rate").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("subsample files with a higher Cine Rate or 1000/Frame Time to <rate> frames per second; "
+						+ "dropped frames are not decoded")
+				.longOpt("fps").build());
+		opts.addOption(null, "bundle", false, "write the frames of each file into one ZIP file " + FrameBundle.NAME
+				+ " with uncompressed Img<frame>.jpeg entries, instead of one file per frame");
 		opts.addOption(Option.builder("c").hasArg().argName("center").type(PatternOptionBuilder.NUMBER_VALUE)
 				.desc(rb.getString("windowCenter")).longOpt("windowCenter").build());
 		opts.addOption(Option.builder("w").hasArg().argName("width").type(PatternOptionBuilder.NUMBER_VALUE)
@@ -188,10 +358,59 @@ public class Dcm2Jpg {
 				Option.builder().hasArg().argName("mask").desc(rb.getString("overlays")).longOpt("overlays").build());
 		opts.addOption(
 				Option.builder().hasArg().argName("value").desc(rb.getString("ovlygray")).longOpt("ovlygray").build());
+		opts.addOption(Option.builder().hasArg().argName("levels").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("decode JPEG 2000 frames without their <levels> highest resolution levels, "
+						+ "at 1/2^<levels> of the size, for output that is downscaled anyway")
+				.longOpt("reduce").build());
+		opts.addOption(null, "fast-lossless", false,
+				"decode grayscale JPEG Lossless frames rendered by --ps, --voilut or --uselut with the "
+						+ "dedicated decoder instead of the ImageIO reader");
 		opts.addOption(null, "uselut", false, rb.getString("uselut"));
 		opts.addOption(null, "noauto", false, rb.getString("noauto"));
 		opts.addOption(null, "lsE", false, rb.getString("lsencoders"));
 		opts.addOption(null, "lsF", false, rb.getString("lsformats"));
+		opts.addOption(null, "vthreads", false,
+				"convert each file on its own virtual thread, writing frames and movie to <dest>/<file>/");
+		opts.addOption(Option.builder().hasArg().argName("number").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("number of decode/encode threads used with --vthreads, number of cores by default")
+				.longOpt("threads").build());
+		opts.addOption(Option.builder().hasArg().argName("MB").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("memory the frames of concurrent conversions with --vthreads may take, "
+						+ "half of the maximum heap by default")
+				.longOpt("memory").build());
+		opts.addOption(null, "estimate", false,
+				"print the estimated frames, memory, CPU time and output size of each source file "
+						+ "from its header and exit");
+		opts.addOption(null, "watch", false,
+				"watch the source directory and convert files arriving in it until terminated, implies --vthreads");
+		opts.addOption(Option.builder().hasArg().argName("ms").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("time the size of an arriving file must not change before it is converted with --watch; "
+						+ "0 if files are moved into the source directory complete, 2000 by default")
+				.longOpt("settle").build());
+		opts.addOption(null, "series", false,
+				"concatenate the frames of all source files, ordered by Instance Number and Acquisition Time, "
+						+ "into the single movie <dest>, without writing frame files");
+		opts.addOption(Option.builder().hasArg().argName("file")
+				.desc("resumable run with --vthreads: list the source files in <file> unless it exists, record "
+						+ "converted ones in <file>.journal and skip them when run again; the sources may be "
+						+ "omitted if <file> exists")
+				.longOpt("manifest").build());
+		opts.addOption(Option.builder().hasArg().argName("dir")
+				.desc("add a job for each source file to the job queue in <dir> and exit; "
+						+ "workers write the frames and movie to <dest>/<file>/")
+				.longOpt("enqueue").build());
+		opts.addOption(Option.builder().hasArg().argName("dir")
+				.desc("convert jobs from the job queue in <dir> until it is empty; "
+						+ "any number of workers may share the queue")
+				.longOpt("worker").build());
+		opts.addOption(Option.builder().hasArg().argName("s").type(PatternOptionBuilder.NUMBER_VALUE)
+				.desc("time after which a job of a --worker that stopped renewing it is converted by another "
+						+ "worker, 300 by default")
+				.longOpt("lease").build());
+		opts.addOption(Option.builder().hasArg().argName("socket")
+				.desc("run as daemon converting the files Dcm2JpgClient sends to the Unix domain socket <socket> "
+						+ "with the given options, until terminated; implies --vthreads")
+				.longOpt("daemon").build());
 
 		CommandLine cl = CLIUtils.parseComandLine(args, opts, rb, Dcm2Jpg.class);
 		if (cl.hasOption("lsF")) {
@@ -213,6 +432,13 @@ public class Dcm2Jpg {
 					cl.getOptionValue("C"), (Number) cl.getParsedOptionValue("q"));
 			if (cl.hasOption("frame"))
 				main.setFrame(((Number) cl.getParsedOptionValue("frame")).intValue());
+			main.setBundle(cl.hasOption("bundle"));
+			if (cl.hasOption("fps"))
+				main.setTargetFrameRate(((Number) cl.getParsedOptionValue("fps")).floatValue());
+			if (cl.hasOption("frames")) {
+				int[] range = parseFrameRange(cl.getOptionValue("frames"));
+				main.setFrameRange(range[0], range[1]);
+			}
 			if (cl.hasOption("c"))
 				main.setWindowCenter(((Number) cl.getParsedOptionValue("c")).floatValue());
 			if (cl.hasOption("w"))
@@ -225,19 +451,87 @@ public class Dcm2Jpg {
 				main.setOverlayActivationMask(parseHex(cl.getOptionValue("overlays")));
 			if (cl.hasOption("ovlygray"))
 				main.setOverlayGrayscaleValue(parseHex(cl.getOptionValue("ovlygray")));
+			if (cl.hasOption("reduce"))
+				main.setResolutionReduction(((Number) cl.getParsedOptionValue("reduce")).intValue());
+			main.setFastLossless(cl.hasOption("fast-lossless"));
 			main.setPreferWindow(!cl.hasOption("uselut"));
 			main.setAutoWindowing(!cl.hasOption("noauto"));
 			main.setPresentationState(loadDicomObject((File) cl.getParsedOptionValue("ps")));
 			@SuppressWarnings("unchecked")
 			final List<String> argList = cl.getArgList();
 			int argc = argList.size();
+			if (cl.hasOption("estimate")) {
+				if (argc < 1)
+					throw new ParseException(rb.getString("missing"));
+				main.estimate(argList);
+				return;
+			}
+			if (cl.hasOption("daemon")) {
+				main.daemon(cl, new File(cl.getOptionValue("daemon")));
+				return;
+			}
+			if (cl.hasOption("worker")) {
+				main.work(cl, new File(cl.getOptionValue("worker")));
+				return;
+			}
+			if (cl.hasOption("enqueue")) {
+				if (argc < 2)
+					throw new ParseException(rb.getString("missing"));
+				List<File> srcs = new ArrayList<File>();
+				for (String src : argList.subList(0, argc - 1))
+					srcs.add(new File(src));
+				LeaseQueue queue = new LeaseQueue(new File(cl.getOptionValue("enqueue")), 0);
+				System.out.println(queue.enqueue(srcs, new File(argList.get(argc - 1))) + " jobs queued");
+				return;
+			}
+			if (cl.hasOption("manifest")) {
+				if (argc < 1)
+					throw new ParseException(rb.getString("missing"));
+				main.resume(cl, argList.subList(0, argc - 1), new File(argList.get(argc - 1)));
+				return;
+			}
 			if (argc < 2)
 				throw new ParseException(rb.getString("missing"));
 			File dest = new File(argList.get(argc - 1));
+			if (cl.hasOption("series")) {
+				List<File> srcs = new ArrayList<File>();
+				for (String src : argList.subList(0, argc - 1))
+					srcs.add(new File(src));
+				SeriesMovie movie = new SeriesMovie(main, srcs);
+				movie.write(dest, Math.round(movie.getFrameRate()));
+				System.out.println(MessageFormat.format(rb.getString("converted"), srcs, dest));
+				return;
+			}
+			if (argList.get(0).equals("-")) {
+				if (argc != 2 || !dest.isDirectory())
+					throw new ParseException("reading standard input requires one destination directory");
+				main.convertStream(new FileInputStream(FileDescriptor.in).getChannel(), "stdin", dest);
+				main.frameWriter.close();
+				System.out.println(MessageFormat.format(rb.getString("converted"), "stdin", dest));
+				return;
+			}
 			if ((argc > 2 || new File(argList.get(0)).isDirectory()) && !dest.isDirectory())
 				throw new ParseException(MessageFormat.format(rb.getString("nodestdir"), dest));
+			if (cl.hasOption("watch")) {
+				if (argc != 2 || !new File(argList.get(0)).isDirectory())
+					throw new ParseException("--watch requires one source directory");
+				main.watch(cl, new File(argList.get(0)), dest);
+				return;
+			}
+			if (cl.hasOption("vthreads")) {
+				BatchScheduler scheduler = main.newBatchScheduler(cl);
+				try {
+					for (String src : argList.subList(0, argc - 1))
+						scheduler.submit(new File(src), dest);
+					scheduler.awaitCompletion();
+				} finally {
+					scheduler.close();
+				}
+				return;
+			}
 			for (String src : argList.subList(0, argc - 1))
 				main.mconvert(new File(src), dest);
+			main.frameWriter.close();
 		} catch (ParseException e) {
 			System.err.println("dcm2jpg: " + e.getMessage());
 			System.err.println(rb.getString("try"));
@@ -249,6 +543,145 @@ public class Dcm2Jpg {
 		}
 	}
 
+	private BatchScheduler newBatchScheduler(CommandLine cl) throws ParseException {
+		int threads = cl.hasOption("threads") ? ((Number) cl.getParsedOptionValue("threads")).intValue()
+				: Runtime.getRuntime().availableProcessors();
+		long memory = cl.hasOption("memory") ? ((Number) cl.getParsedOptionValue("memory")).longValue() << 20
+				: Runtime.getRuntime().maxMemory() / 2;
+		return new BatchScheduler(this, threads, memory);
+	}
+
+	private void estimate(List<String> srcs) throws IOException {
+		long[] total = new long[4];
+		for (String src : srcs)
+			estimate(new File(src), total);
+		System.out.println(String.format(Locale.ROOT,
+				"total: %d files, %d frames, ~%.1f s CPU, ~%.1f MB output", total[0], total[1], total[2] / 1e9,
+				total[3] / 1e6));
+	}
+
+	private void estimate(File src, long[] total) {
+		if (src.isDirectory()) {
+			File[] files = src.listFiles();
+			if (files != null)
+				for (File file : files)
+					estimate(file, total);
+			return;
+		}
+		try {
+			DicomHeader header = DicomHeader.read(src);
+			ConversionEstimate estimate = ConversionEstimate.of(header, selectFrames(header).length);
+			System.out.println(src + ": " + estimate);
+			total[0]++;
+			total[1] += estimate.getFrames();
+			total[2] += estimate.getCpuNanos();
+			total[3] += estimate.getOutputBytes();
+		} catch (IOException e) {
+			System.out.println(MessageFormat.format(rb.getString("failed"), src, e.getMessage()));
+		}
+	}
+
+	private void watch(CommandLine cl, File inbox, File dest) throws Exception {
+		BatchScheduler scheduler = newBatchScheduler(cl);
+		long settle = cl.hasOption("settle") ? ((Number) cl.getParsedOptionValue("settle")).longValue() : 2000L;
+		final WatchFolder watchFolder = new WatchFolder(inbox, dest, scheduler, settle);
+		final Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				watchFolder.stop();
+				mainThread.join();
+			} catch (Exception e) {
+				// exiting anyway
+			}
+		}));
+		try {
+			watchFolder.run();
+			scheduler.awaitCompletion();
+		} finally {
+			watchFolder.close();
+			scheduler.close();
+		}
+	}
+
+	private void daemon(CommandLine cl, File socket) throws Exception {
+		BatchScheduler scheduler = newBatchScheduler(cl);
+		final ConversionDaemon daemon = new ConversionDaemon(scheduler, socket);
+		final Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				daemon.close();
+				mainThread.join();
+			} catch (Exception e) {
+				// exiting anyway
+			}
+		}));
+		try {
+			daemon.run();
+			scheduler.awaitCompletion();
+		} finally {
+			daemon.close();
+			scheduler.close();
+		}
+	}
+
+	private void resume(CommandLine cl, List<String> srcs, File dest) throws Exception {
+		File manifest = new File(cl.getOptionValue("manifest"));
+		if (!manifest.exists()) {
+			if (srcs.isEmpty())
+				throw new ParseException(rb.getString("missing"));
+			List<File> files = new ArrayList<File>(srcs.size());
+			for (String src : srcs)
+				files.add(new File(src));
+			ResumableBatch.writeManifest(files, manifest);
+		}
+		if (!dest.isDirectory())
+			throw new ParseException(MessageFormat.format(rb.getString("nodestdir"), dest));
+		BatchScheduler scheduler = newBatchScheduler(cl);
+		ResumableBatch batch = new ResumableBatch(scheduler, manifest, dest,
+				Runtime.getRuntime().availableProcessors() * 16);
+		int failed;
+		try {
+			failed = batch.run();
+		} finally {
+			batch.close();
+			scheduler.close();
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private void work(CommandLine cl, File queueDir) throws Exception {
+		long lease = cl.hasOption("lease") ? ((Number) cl.getParsedOptionValue("lease")).longValue() : 300L;
+		LeaseQueue queue = new LeaseQueue(queueDir, lease * 1000);
+		BatchScheduler scheduler = newBatchScheduler(cl);
+		int failed;
+		try {
+			failed = queue.work(scheduler, Runtime.getRuntime().availableProcessors() * 4);
+		} finally {
+			queue.close();
+			scheduler.close();
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	private static int[] parseFrameRange(String s) throws ParseException {
+		int colon = s.indexOf(':');
+		try {
+			if (colon < 0)
+				throw new NumberFormatException("missing ':'");
+			String first = s.substring(0, colon).trim();
+			String last = s.substring(colon + 1).trim();
+			int[] range = { first.isEmpty() ? 1 : Integer.parseInt(first),
+					last.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(last) };
+			if (range[0] < 1 || range[1] < range[0])
+				throw new NumberFormatException("empty range");
+			return range;
+		} catch (NumberFormatException e) {
+			throw new ParseException("--frames " + s + ": " + e.getMessage());
+		}
+	}
+
 	private static int parseHex(String s) throws ParseException {
 		try {
 			return Integer.parseInt(s, 16);
@@ -267,21 +700,9 @@ public class Dcm2Jpg {
 		if (dest.isDirectory())
 			dest = new File(dest, suffix(src));
 		try {
-			List<String> files = convert(src);
-			int imageCount = files.size();
-			String[] params = new String[imageCount + 8];
-			for (int i = 0; i < imageCount; i++) {
-				params[i] = files.get(i);
-			}
-			params[imageCount++] = "-f";
-			params[imageCount++] = "10";
-			params[imageCount++] = "-w";
-			params[imageCount++] = "100";
-			params[imageCount++] = "-h";
-			params[imageCount++] = "100";
-			params[imageCount++] = "-o";
-			params[imageCount++] = "Sample.mp4";
-			JpegImagesToMovie.main(params);
+			DicomHeader header = DicomHeader.read(src);
+			List<String> files = convert(header, null);
+			writeMovie(files, null, header);
 			System.out.println(MessageFormat.format(rb.getString("converted"), src, dest));
 		} catch (Exception e) {
 			System.out.println(MessageFormat.format(rb.getString("failed"), src, e.getMessage()));
@@ -289,51 +710,541 @@ public class Dcm2Jpg {
 		}
 	}
 
-	public List convert(File src) throws IOException {
-		Attributes attributes = loadDicomObject(src);
-		int numberOfFrames = attributes.getInt(Tag.NumberOfFrames, 0);
-		List fileNames = new ArrayList();
-		for (int i = 0; i < numberOfFrames; i++) {
-			ImageInputStream iis = null;
-			try {
-				iis = ImageIO.createImageInputStream(src);
+	/**
+	 * Writes <code>Sample.mp4</code> to <code>outDir</code> from the frame
+	 * files or the frame bundle returned by {@link #convert}.
+	 */
+	void writeMovie(List<String> files, File outDir, DicomHeader header) throws IOException {
+		String outputURL = new File(outDir, "Sample.mp4").getPath();
+		if (bundle)
+			writeMovie(new File(outDir, FrameBundle.NAME), outputURL, movieFrameRate(header));
+		else
+			writeMovie(files, outputURL, movieFrameRate(header));
+	}
+
+	static void writeMovie(File bundle, String outputURL, float frameRate) throws IOException {
+		FrameBundle frames = new FrameBundle(bundle);
+		try {
+			if (frames.size() == 0)
+				return;
+			MediaLocator ml = JpegImagesToMovie.createMediaLocator(outputURL);
+			if (!new JpegImagesToMovie().doIt(100, 100, Math.max(Math.round(frameRate), 1), frames.frames(), ml))
+				throw new IOException("Failed to write " + outputURL);
+		} finally {
+			frames.close();
+		}
+	}
+
+	static void writeMovie(List<String> files, String outputURL, float frameRate) {
+		if (files.isEmpty())
+			return;
+		int imageCount = files.size();
+		String[] params = new String[imageCount + 8];
+		for (int i = 0; i < imageCount; i++) {
+			params[i] = files.get(i);
+		}
+		params[imageCount++] = "-f";
+		params[imageCount++] = Integer.toString(Math.max(Math.round(frameRate), 1));
+		params[imageCount++] = "-w";
+		params[imageCount++] = "100";
+		params[imageCount++] = "-h";
+		params[imageCount++] = "100";
+		params[imageCount++] = "-o";
+		params[imageCount++] = outputURL;
+		JpegImagesToMovie.main(params);
+	}
+
+	public List<String> convert(File src) throws IOException {
+		return convert(src, null);
+	}
+
+	/**
+	 * Converts the selected frames of <code>src</code> to
+	 * <code>Img&lt;i&gt;.jpeg</code> files in <code>outDir</code>, or in the working directory if
+	 * <code>outDir</code> is <code>null</code>. Frames are written
+	 * asynchronously, so encoding of the next frame overlaps with writing the
+	 * previous one; all files are complete when this method returns. With
+	 * {@link #setBundle} the frames are written to one
+	 * {@link FrameBundle#NAME} file instead.
+	 * 
+	 * @return the names of the written files
+	 */
+	public List<String> convert(File src, File outDir) throws IOException {
+		return convert(DicomHeader.read(src), outDir);
+	}
+
+	List<String> convert(DicomHeader header, File outDir) throws IOException {
+		return convert(header, openDecoder(header), outDir);
+	}
 
-				BufferedImage bi = readImage(i, iis);
-				bi = convert(bi);
-				String fileName = "Img" + i + ".jpeg";
+	/**
+	 * Converts a DICOM file read forward only from <code>ch</code>, like
+	 * standard input, without spooling it to disk, into frame files and
+	 * <code>Sample.mp4</code> in <code>outDir</code>. Each frame is decoded
+	 * and encoded as soon as it has been received, while the following frames
+	 * are still being received.
+	 *
+	 * @param name
+	 *            name of the input in messages
+	 * @return the names of the written frame files
+	 */
+	public List<String> convertStream(ReadableByteChannel ch, String name, File outDir) throws IOException {
+		StreamDecoder decoder = new StreamDecoder(ch, name);
+		DicomHeader header = decoder.parser.getHeader();
+		try {
+			decoder.receive(selectFrames(header));
+		} catch (RuntimeException e) {
+			decoder.close();
+			throw e;
+		}
+		List<String> files = convert(header, decoder, outDir);
+		writeMovie(files, outDir, header);
+		return files;
+	}
+
+	private List<String> convert(DicomHeader header, FrameDecoder decoder, File outDir) throws IOException {
+		int[] frames = selectFrames(header);
+		List<String> fileNames = new ArrayList<String>();
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		ArrayDeque<Future<BufferedImage>> decoded = new ArrayDeque<Future<BufferedImage>>();
+		FrameBundleWriter bundleWriter = null;
+		boolean success = false;
+		try {
+			if (bundle)
+				bundleWriter = new FrameBundleWriter(new File(outDir, FrameBundle.NAME));
+			int next = 0;
+			for (int i = 0; i < frames.length; i++) {
+				// keep the following frames decoding while this one is encoded
+				while (next < frames.length && next - i < DECODE_AHEAD)
+					decoded.add(decodeAhead(decoder, header, frames[next++]));
+				BufferedImage bi = getDecoded(decoded.poll());
+				byte[] data = encodeFrame(bi, header, frames[i]);
+				decoder.release(bi);
+				if (bundleWriter != null) {
+					bundleWriter.write(frames[i], data);
+					continue;
+				}
+				String fileName = new File(outDir, "Img" + frames[i] + ".jpeg").getPath();
 				fileNames.add(fileName);
-				ImageOutputStream ios = ImageIO.createImageOutputStream(new File(fileName));
-				try {
-					writeImage(ios, bi);
-				} finally {
+				writes.add(frameWriter.write(new File(fileName), ByteBuffer.wrap(data)));
+			}
+			success = true;
+		} finally {
+			for (Future<BufferedImage> f : decoded)
+				f.cancel(true);
+			decoder.close();
+			if (bundleWriter != null) {
+				if (success)
+					bundleWriter.close();
+				else
+					bundleWriter.abort();
+			}
+			if (success)
+				AsyncFrameWriter.await(writes);
+			else
+				AsyncFrameWriter.awaitAfterFailure(writes);
+		}
+		if (bundleWriter != null)
+			fileNames.add(bundleWriter.getFile().getPath());
+		return fileNames;
+	}
+
+	private Future<BufferedImage> decodeAhead(final FrameDecoder decoder, final DicomHeader header,
+			final int frame) {
+		return ForkJoinPool.commonPool().submit(new Callable<BufferedImage>() {
+			@Override
+			public BufferedImage call() throws IOException {
+				return decodeFrame(decoder, header, frame);
+			}
+		});
+	}
+
+	private static BufferedImage getDecoded(Future<BufferedImage> decoded) throws IOException {
+		try {
+			return decoded.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the decoder for the frames of the given file: a dedicated one
+	 * where the transfer syntax and the rendering options allow it, the
+	 * ImageIO DICOM reader otherwise.
+	 */
+	FrameDecoder openDecoder(final DicomHeader header) throws IOException {
+		if (RleDecoder.supports(header))
+			return RleDecoder.open(header.getFile());
+		OverlayBitmaps overlays = overlays(header);
+		CompositeLut lut = compositeLut(header, overlays);
+		// overlay bitmaps have the full frame size
+		if (J2kDecoder.supports(header, lut) && (overlays == null || resolutionReduction == 0))
+			return J2kDecoder.open(header.getFile(), lut, overlays, resolutionReduction);
+		if (fastLossless && JpegLosslessDecoder.supports(header, lut))
+			return JpegLosslessDecoder.open(header.getFile(), lut, overlays,
+					new ImageIODecoder(header.getFile(), overlays, lut));
+		return new ImageIODecoder(header.getFile(), overlays, lut);
+	}
+
+	/**
+	 * @return the rendering chain of the file compiled into one table, with
+	 *         a presentation state, a selected VOI LUT or a VOI LUT preferred
+	 *         to the window, or <code>null</code> if the reader renders the
+	 *         frames
+	 */
+	private CompositeLut compositeLut(DicomHeader header, OverlayBitmaps overlays) {
+		if (prState == null && !voiLUTSelected && preferWindow)
+			return null;
+		Attributes attrs = header.getAttributes();
+		int burntIn = overlays != null ? overlays.getGroupMask() : 0;
+		for (int i = 0; i < 16; i++) {
+			int overlayRows = Tag.OverlayRows | i << 17;
+			// embedded overlays and overlays selected by a presentation state
+			if (prState != null ? attrs.contains(overlayRows) || prState.contains(overlayRows)
+					: (overlayActivationMask & ~burntIn & 1 << i) != 0 && attrs.contains(overlayRows))
+				return null;
+		}
+		return CompositeLut.compile(attrs, prState, windowCenter, windowWidth, windowIndex, voiLUTIndex,
+				preferWindow, autoWindowing);
+	}
+
+	/**
+	 * @return the overlays of the file to burn in after decoding, or
+	 *         <code>null</code> if the reader applies them
+	 */
+	private OverlayBitmaps overlays(DicomHeader header) throws IOException {
+		// overlays of a presentation state are selected and rendered by the reader
+		if (prState != null || overlayActivationMask == 0)
+			return null;
+		return OverlayBitmaps.of(header.getAttributes(), overlayActivationMask, overlayGrayscaleValue);
+	}
+
+	/**
+	 * Reads one frame with the ImageIO DICOM reader, leaving the overlays of
+	 * <code>overlays</code> to be burnt in by the caller.
+	 */
+	private BufferedImage read(ImageReader imageReader, int frame, OverlayBitmaps overlays, CompositeLut lut)
+			throws IOException {
+		ImageReadParam param = readParam(imageReader,
+				overlays != null ? overlayActivationMask & ~overlays.getGroupMask() : overlayActivationMask);
+		return lut != null ? lut.apply(imageReader.readRaster(frame, param)) : imageReader.read(frame, param);
+	}
+
+	/**
+	 * Decodes frames with the ImageIO DICOM reader. Readers stay bound to the
+	 * open file, so the reader parses header and fragment positions once, not
+	 * once per frame; concurrent calls each take their own reader. Overlays
+	 * stored in Overlay Data are burnt in from bitmaps unpacked once per file
+	 * instead of by the reader. With a {@link CompositeLut} the reader returns
+	 * stored values, rendered by one table lookup per pixel.
+	 */
+	private class ImageIODecoder implements FrameDecoder {
+
+		private final File file;
+
+		private final OverlayBitmaps overlays;
+
+		private final CompositeLut lut;
+
+		private final ConcurrentLinkedQueue<ImageReader> idle = new ConcurrentLinkedQueue<ImageReader>();
+
+		private final List<ImageInputStream> opened = new ArrayList<ImageInputStream>();
+
+		private boolean closed;
+
+		ImageIODecoder(File file, OverlayBitmaps overlays, CompositeLut lut) {
+			this.file = file;
+			this.overlays = overlays;
+			this.lut = lut;
+		}
+
+		@Override
+		public BufferedImage decode(int frame) throws IOException {
+			return decode(frame, frame);
+		}
+
+		/**
+		 * @param imageFrame
+		 *            index of the frame in the source file, which selects the
+		 *            overlay frames
+		 */
+		BufferedImage decode(int frame, int imageFrame) throws IOException {
+			ImageReader imageReader = idle.poll();
+			if (imageReader == null)
+				imageReader = newImageReader();
+			BufferedImage bi;
+			try {
+				bi = read(imageReader, frame, overlays, lut);
+			} finally {
+				idle.offer(imageReader);
+			}
+			if (overlays != null)
+				overlays.apply(bi.getRaster(), imageFrame);
+			return bi;
+		}
+
+		private ImageReader newImageReader() throws IOException {
+			ImageInputStream iis = ImageIO.createImageInputStream(file);
+			synchronized (opened) {
+				if (closed) {
+					iis.close();
+					throw new IOException("Decoder closed");
+				}
+				opened.add(iis);
+			}
+			ImageReader imageReader = ImageIO.getImageReadersByFormatName("DICOM").next();
+			imageReader.setInput(iis);
+			return imageReader;
+		}
+
+		@Override
+		public void release(BufferedImage bi) {
+		}
+
+		@Override
+		public void close() {
+			synchronized (opened) {
+				closed = true;
+				for (ImageInputStream iis : opened)
 					try {
-						ios.close();
+						iis.close();
 					} catch (IOException ignore) {
 					}
+			}
+			for (ImageReader imageReader; (imageReader = idle.poll()) != null;)
+				imageReader.dispose();
+		}
+	}
+
+	/**
+	 * Decodes frames read forward only by a {@link StreamingItemParser}. A
+	 * virtual thread receives the selected frames ahead of the decoder, at
+	 * most twice {@link #DECODE_AHEAD}; each frame is decoded by the ImageIO
+	 * DICOM reader from a single frame file in memory, with readers reused
+	 * across frames.
+	 */
+	private final class StreamDecoder implements FrameDecoder {
+
+		final StreamingItemParser parser;
+
+		private final OverlayBitmaps overlays;
+
+		private final CompositeLut lut;
+
+		private final String name;
+
+		private final DicomInputStream dis;
+
+		private final Map<Integer, byte[]> received = new HashMap<Integer, byte[]>();
+
+		private final Semaphore room = new Semaphore(DECODE_AHEAD * 2);
+
+		private final ConcurrentLinkedQueue<ImageReader> idle = new ConcurrentLinkedQueue<ImageReader>();
+
+		private Thread receiver;
+
+		private IOException failure;
+
+		StreamDecoder(ReadableByteChannel ch, String name) throws IOException {
+			this.name = name;
+			this.dis = new DicomInputStream(Channels.newInputStream(ch));
+			try {
+				dis.setDicomInputHandler(new StopTagInputHandler(Tag.PixelData, name));
+				Attributes attributes = dis.readDataset(-1, Tag.PixelData);
+				if (dis.tag() != Tag.PixelData)
+					throw new IOException("No Pixel Data in " + name);
+				this.parser = new StreamingItemParser(dis,
+						new DicomHeader(new File(name), attributes, dis.getTransferSyntax()));
+				this.overlays = overlays(parser.getHeader());
+				this.lut = compositeLut(parser.getHeader(), overlays);
+			} catch (IOException e) {
+				SafeClose.close(dis);
+				throw e;
+			}
+		}
+
+		void receive(final int[] frames) {
+			receiver = Thread.ofVirtual().name("receive " + name).start(() -> {
+				try {
+					for (int frame = 0, i = 0; i < frames.length; frame++) {
+						byte[] data = parser.nextFrame();
+						if (data == null)
+							throw new IOException(name + " ends before frame #" + (frames[i] + 1));
+						if (frame != frames[i])
+							continue;
+						room.acquire();
+						synchronized (received) {
+							received.put(frame, data);
+							received.notifyAll();
+						}
+						i++;
+					}
+				} catch (IOException e) {
+					fail(e);
+				} catch (InterruptedException e) {
+					fail(new InterruptedIOException());
+				} catch (RuntimeException e) {
+					// like a malformed item, else take() waits forever
+					fail(new IOException("Failed to receive " + name, e));
+				} catch (Error e) {
+					fail(new IOException("Failed to receive " + name, e));
+					throw e;
 				}
+			});
+		}
+
+		private void fail(IOException e) {
+			synchronized (received) {
+				failure = e;
+				received.notifyAll();
+			}
+		}
 
+		@Override
+		public BufferedImage decode(int frame) throws IOException {
+			byte[] data = take(frame);
+			room.release();
+			ImageInputStream iis = new MemoryCacheImageInputStream(
+					new ByteArrayInputStream(parser.toSingleFrameFile(data)));
+			ImageReader imageReader = idle.poll();
+			if (imageReader == null)
+				imageReader = ImageIO.getImageReadersByFormatName("DICOM").next();
+			BufferedImage bi;
+			try {
+				imageReader.setInput(iis);
+				bi = read(imageReader, 0, overlays, lut);
 			} finally {
-				try {
-					if (iis != null)
-						iis.close();
-				} catch (IOException ignore) {
+				idle.offer(imageReader);
+				iis.close();
+			}
+			if (overlays != null)
+				overlays.apply(bi.getRaster(), frame);
+			return bi;
+		}
+
+		/**
+		 * Waits for the receiver to hand over <code>frame</code>. Decoding
+		 * runs on the common pool, so the wait is a managed block, for which
+		 * the pool starts spare threads instead of starving its other tasks
+		 * while the input is slow.
+		 */
+		private byte[] take(final int frame) throws IOException {
+			FrameWait wait = new FrameWait(frame);
+			try {
+				ForkJoinPool.managedBlock(wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (wait.data == null)
+				throw failure;
+			return wait.data;
+		}
+
+		private final class FrameWait implements ForkJoinPool.ManagedBlocker {
+
+			final int frame;
+
+			byte[] data;
+
+			FrameWait(int frame) {
+				this.frame = frame;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				synchronized (received) {
+					return (data = received.remove(frame)) != null || failure != null;
+				}
+			}
+
+			@Override
+			public boolean block() throws InterruptedException {
+				synchronized (received) {
+					while ((data = received.remove(frame)) == null && failure == null)
+						received.wait();
 				}
+				return true;
 			}
 		}
-		return fileNames;
+
+		@Override
+		public void release(BufferedImage bi) {
+		}
+
+		@Override
+		public void close() {
+			if (receiver != null)
+				receiver.interrupt();
+			SafeClose.close(dis);
+			for (ImageReader imageReader; (imageReader = idle.poll()) != null;)
+				imageReader.dispose();
+		}
 	}
 
-	private BufferedImage convert(BufferedImage bi) {
+	/**
+	 * Decodes one frame and converts it to the output color model. Safe to
+	 * call concurrently.
+	 */
+	BufferedImage decodeFrame(FrameDecoder decoder, DicomHeader header, int frame) throws IOException {
+		String source = header.getSource();
+		String tsuid = header.getTransferSyntax();
+		FrameDecodeEvent decodeEvent = new FrameDecodeEvent();
+		decodeEvent.begin();
+		BufferedImage bi = decoder.decode(frame);
+		decodeEvent.record(source, frame, tsuid, ConversionEvent.sizeOf(bi));
+		ColorConvertEvent colorEvent = new ColorConvertEvent();
+		colorEvent.begin();
+		BufferedImage converted = convert(bi, header);
+		colorEvent.record(source, frame, tsuid, ConversionEvent.sizeOf(converted));
+		if (converted.getRaster().getDataBuffer() != bi.getRaster().getDataBuffer())
+			decoder.release(bi);
+		return converted;
+	}
+
+	/**
+	 * Encodes one frame into memory. Safe to call concurrently, each thread
+	 * uses its own image writer.
+	 */
+	byte[] encodeFrame(BufferedImage bi, DicomHeader header, int frame) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+		try {
+			writeImage(ios, bi, header, frame);
+		} finally {
+			ios.close();
+		}
+		return out.toByteArray();
+	}
+
+	private BufferedImage convert(BufferedImage bi, DicomHeader header) {
 		ColorModel cm = bi.getColorModel();
-		return cm.getNumComponents() == 3 ? BufferedImageUtils.convertToIntRGB(bi) : bi;
+		if (cm.getNumComponents() == 1)
+			return toByteGray(bi);
+		if (cm.getNumComponents() != 3)
+			return bi;
+		BufferedImage rgb = ColorKernels.toIntRGB(bi,
+				header.getAttributes().getString(Tag.PhotometricInterpretation, null));
+		return rgb != null ? rgb : BufferedImageUtils.convertToIntRGB(bi);
 	}
 
-	private BufferedImage readImage(Integer frame, ImageInputStream iis) throws IOException {
-		imageReader.setInput(iis);
-		return imageReader.read(frame, readParam());
+	/**
+	 * Returns 8 bit grayscale frames as <code>TYPE_BYTE_GRAY</code>, sharing
+	 * the raster, so writers encode them as single component images without
+	 * converting them first.
+	 */
+	private static BufferedImage toByteGray(BufferedImage bi) {
+		if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY)
+			return bi;
+		WritableRaster raster = bi.getRaster();
+		if (raster.getNumBands() != 1 || raster.getSampleModel().getSampleSize(0) != 8
+				|| !(raster.getSampleModel() instanceof PixelInterleavedSampleModel))
+			return bi;
+		return new BufferedImage(BYTE_GRAY, raster, false, null);
 	}
 
-	private ImageReadParam readParam() {
+	private ImageReadParam readParam(ImageReader imageReader, int overlayActivationMask) {
 		DicomImageReadParam param = (DicomImageReadParam) imageReader.getDefaultReadParam();
 		param.setWindowCenter(windowCenter);
 		param.setWindowWidth(windowWidth);
@@ -347,9 +1258,26 @@ public class Dcm2Jpg {
 		return param;
 	}
 
-	private void writeImage(ImageOutputStream ios, BufferedImage bi) throws IOException {
+	private void writeImage(ImageOutputStream ios, BufferedImage bi, DicomHeader header, int frame)
+			throws IOException {
+		FrameEncodeEvent encodeEvent = new FrameEncodeEvent();
+		encodeEvent.begin();
+		ImageWriter imageWriter = this.imageWriter.get();
 		imageWriter.setOutput(ios);
-		imageWriter.write(null, new IIOImage(bi, null, null), imageWriteParam);
+		imageWriter.write(null, new IIOImage(bi, null, null), writeParam(imageWriter));
+		encodeEvent.record(header.getSource(), frame, header.getTransferSyntax(), ios.getStreamPosition());
+	}
+
+	private ImageWriteParam writeParam(ImageWriter imageWriter) {
+		ImageWriteParam param = imageWriter.getDefaultWriteParam();
+		if (compressionType != null || quality != null) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			if (compressionType != null)
+				param.setCompressionType(compressionType);
+			if (quality != null)
+				param.setCompressionQuality(quality.floatValue());
+		}
+		return param;
 	}
 
 	private String suffix(File src) {
@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.util.SafeClose;
+
+/**
+ * Attributes of a DICOM file read up to, but excluding, the Pixel Data
+ * element, together with the transfer syntax of the data set.
+ */
+public class DicomHeader {
+
+	private final File file;
+
+	private final Attributes attributes;
+
+	private final String transferSyntax;
+
+	public DicomHeader(File file, Attributes attributes, String transferSyntax) {
+		this.file = file;
+		this.attributes = attributes;
+		this.transferSyntax = transferSyntax;
+	}
+
+	public static DicomHeader read(File file) throws IOException {
+		DicomInputStream dis = new DicomInputStream(file);
+		try {
+			dis.setDicomInputHandler(new StopTagInputHandler(Tag.PixelData, file.getPath()));
+			Attributes attributes = dis.readDataset(-1, Tag.PixelData);
+			return new DicomHeader(file, attributes, dis.getTransferSyntax());
+		} finally {
+			SafeClose.close(dis);
+		}
+	}
+
+	public final File getFile() {
+		return file;
+	}
+
+	public final String getSource() {
+		return file.getPath();
+	}
+
+	public final Attributes getAttributes() {
+		return attributes;
+	}
+
+	public final String getTransferSyntax() {
+		return transferSyntax;
+	}
+
+	/**
+	 * @return value of Number of Frames, or 1 for single frame images which do
+	 *         not include the attribute
+	 */
+	public int getNumberOfFrames() {
+		return attributes.getInt(Tag.NumberOfFrames, 1);
+	}
+
+	/**
+	 * @return frames per second from Cine Rate, Frame Time or Recommended
+	 *         Display Frame Rate, or <code>defaultRate</code> if none of them
+	 *         is present
+	 */
+	public float getFrameRate(float defaultRate) {
+		int cineRate = attributes.getInt(Tag.CineRate, 0);
+		if (cineRate > 0)
+			return cineRate;
+		float frameTime = attributes.getFloat(Tag.FrameTime, 0);
+		if (frameTime > 0)
+			return 1000 / frameTime;
+		int recommended = attributes.getInt(Tag.RecommendedDisplayFrameRate, 0);
+		return recommended > 0 ? recommended : defaultRate;
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.stream.ImageInputStreamAdapter;
+import org.dcm4che3.io.DicomInputStream;
+
+import com.sun.media.imageio.stream.SegmentedImageInputStream;
+
+/**
+ * Open file with encapsulated Pixel Data and the {@link ItemParser} index of
+ * its fragments. The header and the item headers are read through the same
+ * {@link ImageInputStream}, so the stream positions recorded by the parser
+ * can be used to read single frames without touching the other ones.
+ *
+ * Reads are serialized on the shared stream; decoding of the returned bytes
+ * may run concurrently.
+ */
+public class FragmentIndex implements Closeable {
+
+	private final DicomHeader header;
+
+	private final ImageInputStream iis;
+
+	private final ItemParser itemParser;
+
+	private final SegmentedImageInputStream siis;
+
+	private FragmentIndex(DicomHeader header, ImageInputStream iis, ItemParser itemParser) {
+		this.header = header;
+		this.iis = iis;
+		this.itemParser = itemParser;
+		this.siis = new SegmentedImageInputStream(iis, itemParser);
+	}
+
+	public static FragmentIndex open(File file) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(file);
+		try {
+			DicomInputStream dis = new DicomInputStream(new ImageInputStreamAdapter(iis));
+			dis.setDicomInputHandler(new StopTagInputHandler(Tag.PixelData, file.getPath()));
+			Attributes attributes = dis.readDataset(-1, Tag.PixelData);
+			if (dis.tag() != Tag.PixelData || dis.length() != -1)
+				throw new IOException("No encapsulated Pixel Data in " + file);
+			DicomHeader header = new DicomHeader(file, attributes, dis.getTransferSyntax());
+			ItemParser itemParser = new ItemParser(dis, iis, header.getNumberOfFrames(),
+					header.getTransferSyntax(), file.getPath());
+			return new FragmentIndex(header, iis, itemParser);
+		} catch (IOException e) {
+			iis.close();
+			throw e;
+		} catch (RuntimeException e) {
+			iis.close();
+			throw e;
+		}
+	}
+
+	public final DicomHeader getHeader() {
+		return header;
+	}
+
+	public int getNumberOfFrames() {
+		return header.getNumberOfFrames();
+	}
+
+	/**
+	 * @return stream position and length of the first fragment of the frame
+	 */
+	public synchronized long[] getFrameOffsetAndLength(int frame) throws IOException {
+		return itemParser.fetchFrameOffsetAndLength(frame);
+	}
+
+	/**
+	 * Reads the concatenated fragments of one frame.
+	 */
+	public synchronized byte[] readFrame(int frame) throws IOException {
+		return itemParser.readFrame(siis, frame);
+	}
+
+	/**
+	 * Reads <code>length</code> bytes at stream position <code>pos</code> into
+	 * <code>b</code>, for frames known to be stored in a single fragment.
+	 */
+	public synchronized void readFully(long pos, byte[] b, int off, int length) throws IOException {
+		iis.seek(pos);
+		iis.readFully(b, off, length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		iis.close();
+	}
+}
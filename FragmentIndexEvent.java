@@ -0,0 +1,15 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.FragmentIndex")
+@Label("Fragment Index Build")
+@Description("Item headers of encapsulated Pixel Data scanned by ItemParser")
+class FragmentIndexEvent extends ConversionEvent {
+
+	@Label("Fragments")
+	int fragments;
+
+	@Label("Frames Located")
+	int frames;
+}
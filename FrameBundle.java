@@ -0,0 +1,86 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Random access to the frames of a bundle written by
+ * {@link FrameBundleWriter}. The frame index is read once from the central
+ * directory on open; reading frame <i>i</i> is then a lookup and one
+ * positioned read of its STORED entry.
+ */
+public class FrameBundle implements Closeable {
+
+	/** name of the bundle in the output directory of a conversion */
+	public static final String NAME = "frames.zip";
+
+	private final ZipFile zip;
+
+	private final ZipEntry[] entries;
+
+	public FrameBundle(File file) throws IOException {
+		this.zip = new ZipFile(file);
+		List<ZipEntry> list = new ArrayList<ZipEntry>(zip.size());
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();)
+			list.add(e.nextElement());
+		this.entries = list.toArray(new ZipEntry[list.size()]);
+	}
+
+	/**
+	 * @return number of frames in the bundle
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * @return zero based frame number of the <code>i</code>th frame in the
+	 *         bundle, which differs from <code>i</code> if frames were
+	 *         selected or subsampled
+	 */
+	public int getFrameNumber(int i) {
+		String name = entries[i].getName();
+		return Integer.parseInt(name.substring(3, name.length() - 5));
+	}
+
+	/**
+	 * @return the encoded <code>i</code>th frame in the bundle
+	 */
+	public byte[] readFrame(int i) throws IOException {
+		ZipEntry entry = entries[i];
+		byte[] data = new byte[(int) entry.getSize()];
+		InputStream in = zip.getInputStream(entry);
+		try {
+			int n = in.readNBytes(data, 0, data.length);
+			if (n != data.length)
+				throw new IOException("Truncated " + entry.getName() + " in " + zip.getName());
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * @return the frames in bundle order, for {@link JpegImagesToMovie}
+	 */
+	public JpegImagesToMovie.FrameSource frames() {
+		return new JpegImagesToMovie.FrameSource() {
+			private int next;
+
+			@Override
+			public byte[] nextFrame() throws IOException {
+				return next < entries.length ? readFrame(next++) : null;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		zip.close();
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Appends encoded frames to one ZIP file with STORED entries, named like the
+ * frame files, <code>Img&lt;frame&gt;.jpeg</code>. The file is written
+ * sequentially through one handle, and the central directory at its end is
+ * the frame index, read by {@link FrameBundle} and any ZIP tool. It is
+ * written to <code>&lt;file&gt;.part</code> and renamed on {@link #close},
+ * so an existing bundle is always complete.
+ */
+public class FrameBundleWriter implements Closeable {
+
+	private final File file;
+
+	private final File part;
+
+	private final ZipOutputStream zip;
+
+	private final CRC32 crc = new CRC32();
+
+	private boolean failed;
+
+	public FrameBundleWriter(File file) throws IOException {
+		this.file = file;
+		this.part = new File(file.getPath() + ".part");
+		this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(part), 1 << 16));
+		zip.setMethod(ZipOutputStream.STORED);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Appends the encoded frame; frames must be written in the order of
+	 * their frame numbers.
+	 *
+	 * @param frame
+	 *            zero based frame number
+	 */
+	public void write(int frame, byte[] data) throws IOException {
+		ZipEntry entry = new ZipEntry("Img" + frame + ".jpeg");
+		crc.reset();
+		crc.update(data, 0, data.length);
+		entry.setSize(data.length);
+		entry.setCompressedSize(data.length);
+		entry.setCrc(crc.getValue());
+		try {
+			zip.putNextEntry(entry);
+			zip.write(data);
+			zip.closeEntry();
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes and deletes the incomplete bundle.
+	 */
+	public void abort() throws IOException {
+		failed = true;
+		close();
+	}
+
+	/**
+	 * Writes the frame index and renames the bundle to its final name, unless
+	 * a write failed before, then it is deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		boolean complete = false;
+		try {
+			zip.close();
+			complete = !failed;
+		} finally {
+			if (!complete)
+				Files.deleteIfExists(part.toPath());
+		}
+		if (complete)
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+	}
+}
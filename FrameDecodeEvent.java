@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.FrameDecode")
+@Label("Frame Decode")
+@Description("One frame read and decoded into a raster")
+class FrameDecodeEvent extends ConversionEvent {
+}
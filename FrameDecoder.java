@@ -0,0 +1,23 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Decodes the frames of one source file. Implementations must allow
+ * concurrent calls of {@link #decode}, so frames can be decoded ahead of the
+ * encoder on several threads.
+ */
+public interface FrameDecoder extends Closeable {
+
+	/**
+	 * @param frame
+	 *            zero based frame index
+	 */
+	BufferedImage decode(int frame) throws IOException;
+
+	/**
+	 * Hands back an image returned by {@link #decode} once it is no longer
+	 * used, so its raster may be reused for another frame.
+	 */
+	void release(BufferedImage bi);
+}
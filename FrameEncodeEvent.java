@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.FrameEncode")
+@Label("Frame Encode")
+@Description("One frame encoded by the image writer")
+class FrameEncodeEvent extends ConversionEvent {
+}
@@ -0,0 +1,268 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process random access to the encoded frames of DICOM files, for viewers
+ * scrubbing back and forth through cine loops. Opened files stay open with
+ * their header and fragment index, so a request for another frame of the same
+ * file neither reopens the file nor rescans its items. Encoded frames are kept
+ * in an {@link OffHeapFrameCache} keyed by file, frame and the rendering
+ * options of the converter; the frames following a requested one are
+ * converted ahead in the background, so stepping through a loop hits the
+ * cache. The decoder of an open file renders with the options at the time it
+ * was opened, so it is reopened when the options change; the previous one is
+ * closed once the frames it is decoding are done.
+ */
+public class FrameServer implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(FrameServer.class);
+
+	private static final int PREFETCH_AHEAD = 2;
+
+	private final Dcm2Jpg converter;
+
+	private final OffHeapFrameCache cache;
+
+	private final Executor prefetchExecutor = ForkJoinPool.commonPool();
+
+	private final ConcurrentHashMap<File, OpenFile> openFiles = new ConcurrentHashMap<File, OpenFile>();
+
+	private final ConcurrentHashMap<Key, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<Key, CompletableFuture<ByteBuffer>>();
+
+	private final AtomicLong prefetches = new AtomicLong();
+
+	public FrameServer(Dcm2Jpg converter, long cacheBytes) {
+		this.converter = converter;
+		this.cache = new OffHeapFrameCache(cacheBytes);
+	}
+
+	public final OffHeapFrameCache getCache() {
+		return cache;
+	}
+
+	public long getPrefetches() {
+		return prefetches.get();
+	}
+
+	public int getNumberOfFrames(File file) throws IOException {
+		OpenFile openFile = open(file, converter.renderingKey());
+		try {
+			return openFile.header.getNumberOfFrames();
+		} finally {
+			openFile.unref();
+		}
+	}
+
+	/**
+	 * Returns the encoded frame, converting it if it is not cached yet.
+	 *
+	 * @param frame
+	 *            zero based frame index
+	 * @return read-only buffer with the encoded frame
+	 */
+	public ByteBuffer getFrame(File file, int frame) throws IOException {
+		String rendering = converter.renderingKey();
+		OpenFile openFile = open(file, rendering);
+		try {
+			int numberOfFrames = openFile.header.getNumberOfFrames();
+			if (frame < 0 || frame >= numberOfFrames)
+				throw new IllegalArgumentException("frame: " + frame + ", number of frames: " + numberOfFrames);
+			Key key = new Key(openFile.file, frame, rendering);
+			ByteBuffer data = cache.get(key);
+			if (data == null)
+				data = load(openFile, key);
+			prefetch(openFile, frame, rendering);
+			return data;
+		} finally {
+			openFile.unref();
+		}
+	}
+
+	private ByteBuffer load(OpenFile openFile, Key key) throws IOException {
+		CompletableFuture<ByteBuffer> loaded = new CompletableFuture<ByteBuffer>();
+		CompletableFuture<ByteBuffer> other = loading.putIfAbsent(key, loaded);
+		if (other != null)
+			return await(other);
+		try {
+			ByteBuffer data = cache.put(key, openFile.convert(key.frame));
+			loaded.complete(data);
+			return data;
+		} catch (IOException e) {
+			loaded.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			loaded.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key);
+		}
+	}
+
+	private void prefetch(final OpenFile openFile, int frame, String rendering) {
+		int numberOfFrames = openFile.header.getNumberOfFrames();
+		for (int i = Math.max(frame - 1, 0), end = Math.min(frame + PREFETCH_AHEAD, numberOfFrames - 1); i <= end; i++) {
+			final Key key = new Key(openFile.file, i, rendering);
+			if (i == frame || cache.contains(key) || loading.containsKey(key) || !openFile.ref())
+				continue;
+			prefetches.incrementAndGet();
+			prefetchExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(openFile, key);
+					} catch (Exception e) {
+						log.debug("Failed to prefetch frame #{} of {}:", key.frame + 1, key.file, e);
+					} finally {
+						openFile.unref();
+					}
+				}
+			});
+		}
+	}
+
+	private static ByteBuffer await(CompletableFuture<ByteBuffer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the file opened for <code>rendering</code>, referenced for the
+	 * caller, who has to {@link OpenFile#unref} it. A file opened for other
+	 * options is replaced.
+	 */
+	private OpenFile open(File file, final String rendering) throws IOException {
+		while (true) {
+			final OpenFile[] replaced = new OpenFile[1];
+			OpenFile openFile;
+			try {
+				openFile = openFiles.compute(file.getAbsoluteFile(), (f, old) -> {
+					if (old != null && old.rendering.equals(rendering))
+						return old;
+					try {
+						replaced[0] = old;
+						return new OpenFile(f, old != null ? old.header : DicomHeader.read(f), rendering);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			if (replaced[0] != null)
+				replaced[0].unref();
+			// fails if the file was released or replaced meanwhile
+			if (openFile.ref())
+				return openFile;
+		}
+	}
+
+	/**
+	 * Closes the file and forgets its index. Cached frames of the file stay
+	 * cached until they are evicted.
+	 */
+	public void release(File file) throws IOException {
+		OpenFile openFile = openFiles.remove(file.getAbsoluteFile());
+		if (openFile != null)
+			openFile.unref();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (File file : openFiles.keySet())
+			release(file);
+		log.info("Closed frame server: {}, {} frames prefetched", cache, prefetches.get());
+	}
+
+	private final class OpenFile {
+
+		final File file;
+		final DicomHeader header;
+		final String rendering;
+		final FrameDecoder decoder;
+
+		/** users of the decoder, one for the map entry; it is closed at 0 */
+		final AtomicInteger refs = new AtomicInteger(1);
+
+		OpenFile(File file, DicomHeader header, String rendering) throws IOException {
+			this.file = file;
+			this.header = header;
+			this.rendering = rendering;
+			this.decoder = converter.openDecoder(header);
+		}
+
+		/**
+		 * @return <code>false</code> if the decoder is closed already
+		 */
+		boolean ref() {
+			for (int n; (n = refs.get()) > 0;)
+				if (refs.compareAndSet(n, n + 1))
+					return true;
+			return false;
+		}
+
+		void unref() {
+			if (refs.decrementAndGet() == 0) {
+				try {
+					decoder.close();
+				} catch (IOException e) {
+					log.debug("Failed to close {}:", file, e);
+				}
+			}
+		}
+
+		byte[] convert(int frame) throws IOException {
+			BufferedImage bi = converter.decodeFrame(decoder, header, frame);
+			try {
+				return converter.encodeFrame(bi, header, frame);
+			} finally {
+				decoder.release(bi);
+			}
+		}
+	}
+
+	private static final class Key {
+
+		final File file;
+		final int frame;
+		final String rendering;
+
+		Key(File file, int frame, String rendering) {
+			this.file = file;
+			this.frame = frame;
+			this.rendering = rendering;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return frame == other.frame && file.equals(other.file) && rendering.equals(other.rendering);
+		}
+
+		@Override
+		public int hashCode() {
+			return (file.hashCode() * 31 + frame) * 31 + rendering.hashCode();
+		}
+	}
+}
@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.HeaderParse")
+@Label("Header Parse")
+@Description("Attributes read up to the Pixel Data element")
+class HeaderParseEvent extends ConversionEvent {
+}
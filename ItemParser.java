@@ -28,7 +28,7 @@ public class ItemParser implements StreamSegmentMapper {
 
     private static final Logger log = LoggerFactory.getLogger(ItemParser.class);
 
-    private static final HashSet<String> JPEG_TS = new HashSet<String>(
+    static final HashSet<String> JPEG_TS = new HashSet<String>(
             Arrays.asList(new String[] { UID.JPEGBaseline1, UID.JPEGExtended24,
                     UID.JPEGExtended35Retired,
                     UID.JPEGSpectralSelectionNonHierarchical68Retired,
@@ -104,10 +104,27 @@ public class ItemParser implements StreamSegmentMapper {
 
     private int frame;
 
+    private final String source;
+
+    private final String tsuid;
+
     public ItemParser(DicomInputStream dis, ImageInputStream iis,
             int numberOfFrames, String tsuid) throws IOException {
+        this(dis, iis, numberOfFrames, tsuid, null);
+    }
+
+    /**
+     * @param source name of the parsed file, reported in the fragment index
+     *               events
+     */
+    public ItemParser(DicomInputStream dis, ImageInputStream iis,
+            int numberOfFrames, String tsuid, String source) throws IOException {
+        FragmentIndexEvent event = new FragmentIndexEvent();
+        event.begin();
         this.dis = dis;
         this.iis = iis;
+        this.source = source;
+        this.tsuid = tsuid;
         // Handle video type data - eventually there should be another way to compute this
         if( VIDEO_TS.contains(tsuid) ) numberOfFrames = 1;
         this.numberOfFrames = numberOfFrames; 
@@ -165,6 +182,18 @@ public class ItemParser implements StreamSegmentMapper {
         		prev = addItem;
         	}
         }        
+        recordIndexEvent(event);
+    }
+
+    private void recordIndexEvent(FragmentIndexEvent event) {
+        if (!event.isEnabled())
+            return;
+        long bytes = 0;
+        for (Item item : items)
+            bytes += item.length;
+        event.fragments = items.size();
+        event.frames = firstItemOfFrame.size();
+        event.record(source, -1, tsuid, bytes);
     }
 
     /**
@@ -184,8 +213,13 @@ public class ItemParser implements StreamSegmentMapper {
     }
 
     public int getNumberOfDataFragments() {
-        while (!lastItemSeen)
-            next();
+        if (!lastItemSeen) {
+            FragmentIndexEvent event = new FragmentIndexEvent();
+            event.begin();
+            while (!lastItemSeen)
+                next();
+            recordIndexEvent(event);
+        }
         return items.size();
     }
 
@@ -0,0 +1,283 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+
+import com.github.jaiimageio.jpeg2000.J2KImageReadParam;
+import com.github.jaiimageio.jpeg2000.impl.J2KImageReaderSpi;
+
+/**
+ * Decoder for JPEG 2000 frames, working on the code stream located by
+ * {@link ItemParser} instead of the ImageIO DICOM reader. Frames are decoded
+ * in parallel to each other by the converter. The tiles of a tiled code
+ * stream are independent, so while fewer frames are decoding than there are
+ * cores, like for single frame images, the tiles are decoded in parallel,
+ * each by its own <code>J2KImageReader</code> reading the region of the tile,
+ * and copied into the frame. Each of these readers parses the whole code
+ * stream, so splitting takes more CPU time than one reader and would only
+ * slow down frames already decoded in parallel; see
+ * {@link J2kDecoderBenchmark}.
+ *
+ * With a resolution reduction of <i>n</i> the <i>n</i> highest resolution
+ * levels are not decoded, giving a frame of 1/2<sup><i>n</i></sup> of the size
+ * in a fraction of the time, for output that is downscaled anyway.
+ *
+ * Grayscale frames are rendered by a {@link CompositeLut}, color frames are
+ * returned as decoded, RGB after the inverse component transform.
+ */
+public class J2kDecoder implements FrameDecoder {
+
+	private static final ImageReaderSpi SPI = new J2KImageReaderSpi();
+
+	private static final int SOC = 0xFF4F, SIZ = 0xFF51, COD = 0xFF52, SOT = 0xFF90;
+
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+	/** frames being decoded by all instances */
+	private static final AtomicInteger decoding = new AtomicInteger();
+
+	private final FragmentIndex index;
+
+	private final CompositeLut lut;
+
+	private final OverlayBitmaps overlays;
+
+	private final int resolutionReduction;
+
+	private final ConcurrentLinkedQueue<ImageReader> idle = new ConcurrentLinkedQueue<ImageReader>();
+
+	private volatile ColorModel colorModel;
+
+	public J2kDecoder(FragmentIndex index, CompositeLut lut, OverlayBitmaps overlays, int resolutionReduction) {
+		this.index = index;
+		this.lut = lut;
+		this.overlays = overlays;
+		this.resolutionReduction = resolutionReduction;
+	}
+
+	/**
+	 * @param lut
+	 *            renders grayscale frames, <code>null</code> for color
+	 * @param overlays
+	 *            burnt into grayscale frames at full resolution, or
+	 *            <code>null</code>
+	 */
+	public static J2kDecoder open(File file, CompositeLut lut, OverlayBitmaps overlays, int resolutionReduction)
+			throws IOException {
+		return new J2kDecoder(FragmentIndex.open(file), lut, overlays, resolutionReduction);
+	}
+
+	/**
+	 * Returns <code>true</code> for JPEG 2000 images with 8 bit color
+	 * pixels, and for grayscale images whose rendering compiled into
+	 * <code>lut</code>.
+	 */
+	public static boolean supports(DicomHeader header, CompositeLut lut) {
+		String tsuid = header.getTransferSyntax();
+		if (!UID.JPEG2000.equals(tsuid) && !UID.JPEG2000LosslessOnly.equals(tsuid))
+			return false;
+		Attributes attrs = header.getAttributes();
+		int samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+		return samples == 1 ? lut != null : samples == 3 && attrs.getInt(Tag.BitsAllocated, 0) == 8;
+	}
+
+	@Override
+	public BufferedImage decode(int frame) throws IOException {
+		byte[] data = index.readFrame(frame);
+		Raster raster;
+		// the split tiles need at least two cores no other frame is decoded on
+		boolean splitTiles = decoding.incrementAndGet() + 2 <= CORES;
+		try {
+			raster = decodeRaster(data, splitTiles);
+		} finally {
+			decoding.decrementAndGet();
+		}
+		if (lut == null)
+			return new BufferedImage(colorModel(data), (WritableRaster) raster, false, null);
+		BufferedImage bi = lut.apply(raster);
+		if (overlays != null)
+			overlays.apply(bi.getRaster(), frame);
+		return bi;
+	}
+
+	/**
+	 * @param splitTiles
+	 *            decode the tiles of a tiled code stream in parallel, instead
+	 *            of all by one reader
+	 */
+	Raster decodeRaster(byte[] data, boolean splitTiles) throws IOException {
+		CodeStream cs = new CodeStream(data);
+		int levels = Math.min(resolutionReduction, cs.decompositionLevels);
+		if (splitTiles && levels == 0 && cs.tiles() > 1)
+			return readTiles(data, cs);
+		J2KImageReadParam param = new J2KImageReadParam();
+		if (levels > 0)
+			param.setResolution(cs.decompositionLevels - levels);
+		return read(data, param);
+	}
+
+	private Raster read(byte[] data, J2KImageReadParam param) throws IOException {
+		ImageReader reader = idle.poll();
+		if (reader == null)
+			reader = SPI.createReaderInstance();
+		try {
+			// J2KImageReader.reset() fails without input; the next setInput replaces it
+			reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+			return reader.readRaster(0, param);
+		} finally {
+			idle.offer(reader);
+		}
+	}
+
+	private ColorModel colorModel(byte[] data) throws IOException {
+		ColorModel cm = colorModel;
+		if (cm == null) {
+			ImageReader reader = SPI.createReaderInstance();
+			try {
+				reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+				cm = colorModel = reader.getImageTypes(0).next().getColorModel();
+			} finally {
+				reader.dispose();
+			}
+		}
+		return cm;
+	}
+
+	/**
+	 * Decodes each tile in parallel and copies it into the frame.
+	 */
+	private Raster readTiles(final byte[] data, CodeStream cs) throws IOException {
+		final Rectangle[] tiles = cs.tileRegions();
+		final Raster[] decoded = new Raster[tiles.length];
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(tiles.length);
+		for (int i = 0; i < tiles.length; i++) {
+			final int t = i;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					J2KImageReadParam param = new J2KImageReadParam();
+					param.setSourceRegion(tiles[t]);
+					try {
+						decoded[t] = read(data, param);
+					} catch (IOException e) {
+						completeExceptionally(e);
+					}
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+		for (RecursiveAction task : tasks)
+			if (task.getException() != null)
+				throw task.getException() instanceof IOException ? (IOException) task.getException()
+						: new IOException(task.getException());
+		WritableRaster raster = decoded[0].createCompatibleWritableRaster(cs.width, cs.height);
+		for (int i = 0; i < tiles.length; i++)
+			raster.setRect(tiles[i].x - decoded[i].getMinX(), tiles[i].y - decoded[i].getMinY(), decoded[i]);
+		return raster;
+	}
+
+	@Override
+	public void release(BufferedImage bi) {
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (ImageReader reader; (reader = idle.poll()) != null;)
+			reader.dispose();
+		index.close();
+	}
+
+	/**
+	 * Image and tile size from the SIZ marker segment and the number of
+	 * decomposition levels from the COD marker segment of the main header.
+	 */
+	static final class CodeStream {
+
+		int width, height, tileWidth, tileHeight, tileOffsetX, tileOffsetY, imageOffsetX, imageOffsetY;
+
+		int decompositionLevels;
+
+		CodeStream(byte[] b) throws IOException {
+			if (b.length < 4 || ushort(b, 0) != SOC)
+				throw new IOException("No JPEG 2000 code stream");
+			boolean siz = false;
+			for (int pos = 2; pos + 4 <= b.length;) {
+				int marker = ushort(b, pos);
+				int length = ushort(b, pos + 2);
+				if (marker == SOT || (marker & 0xFF00) != 0xFF00)
+					break;
+				if (pos + 2 + length > b.length)
+					throw new IOException("Truncated JPEG 2000 main header");
+				if (marker == SIZ) {
+					int xsiz = (int) uint(b, pos + 6), ysiz = (int) uint(b, pos + 10);
+					imageOffsetX = (int) uint(b, pos + 14);
+					imageOffsetY = (int) uint(b, pos + 18);
+					tileWidth = (int) uint(b, pos + 22);
+					tileHeight = (int) uint(b, pos + 26);
+					tileOffsetX = (int) uint(b, pos + 30);
+					tileOffsetY = (int) uint(b, pos + 34);
+					width = xsiz - imageOffsetX;
+					height = ysiz - imageOffsetY;
+					siz = true;
+				} else if (marker == COD) {
+					decompositionLevels = b[pos + 9] & 0xFF;
+				}
+				pos += 2 + length;
+			}
+			if (!siz || width <= 0 || height <= 0 || tileWidth <= 0 || tileHeight <= 0)
+				throw new IOException("No valid SIZ marker in JPEG 2000 code stream");
+		}
+
+		int tilesX() {
+			return (int) ((imageOffsetX + (long) width - tileOffsetX + tileWidth - 1) / tileWidth);
+		}
+
+		int tilesY() {
+			return (int) ((imageOffsetY + (long) height - tileOffsetY + tileHeight - 1) / tileHeight);
+		}
+
+		int tiles() {
+			return tilesX() * tilesY();
+		}
+
+		/**
+		 * @return the tiles in image coordinates, clipped to the image
+		 */
+		Rectangle[] tileRegions() {
+			int nx = tilesX(), ny = tilesY();
+			Rectangle image = new Rectangle(0, 0, width, height);
+			Rectangle[] tiles = new Rectangle[nx * ny];
+			for (int ty = 0; ty < ny; ty++)
+				for (int tx = 0; tx < nx; tx++)
+					tiles[ty * nx + tx] = image.intersection(new Rectangle(tileOffsetX + tx * tileWidth - imageOffsetX,
+							tileOffsetY + ty * tileHeight - imageOffsetY, tileWidth, tileHeight));
+			return tiles;
+		}
+
+		private static int ushort(byte[] b, int i) {
+			return (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+		}
+
+		private static long uint(byte[] b, int i) {
+			return (long) ushort(b, i) << 16 | ushort(b, i + 2);
+		}
+	}
+}
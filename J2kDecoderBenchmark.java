@@ -0,0 +1,107 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.github.jaiimageio.jpeg2000.J2KImageWriteParam;
+import com.github.jaiimageio.jpeg2000.impl.J2KImageWriterSpi;
+
+/**
+ * Compares decoding a synthetic tiled 16 bit lossless JPEG 2000 code stream
+ * by one <code>J2KImageReader</code> against the parallel tile decoding of
+ * {@link J2kDecoder}: for a single frame, and for as many frames decoded at
+ * the same time as there are cores, as the converter decodes ahead.
+ *
+ * <pre>
+ * java J2kDecoderBenchmark [width] [height] [tile size] [iterations]
+ * </pre>
+ */
+public class J2kDecoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int w = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 700;
+		int tile = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		final byte[] data = encode(w, h, tile);
+		final J2kDecoder decoder = new J2kDecoder(null, null, null, 0);
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(w + "x" + h + ", " + tile + "x" + tile + " tiles, " + data.length + " bytes, best of "
+				+ iterations + " runs, " + cores + " cores");
+
+		// warm up both paths
+		time(decoder, data, false, cores, 3);
+		time(decoder, data, true, cores, 3);
+		print("1 frame, one reader", time(decoder, data, false, 1, iterations), 1);
+		print("1 frame, split tiles", time(decoder, data, true, 1, iterations), 1);
+		print(cores + " frames, one reader each", time(decoder, data, false, cores, iterations), cores);
+		print(cores + " frames, split tiles", time(decoder, data, true, cores, iterations), cores);
+	}
+
+	private static long time(final J2kDecoder decoder, final byte[] data, final boolean splitTiles, int frames,
+			int iterations) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(frames);
+		try {
+			long best = Long.MAX_VALUE;
+			for (int n = 0; n < iterations; n++) {
+				long start = System.nanoTime();
+				List<Future<?>> decoded = new ArrayList<Future<?>>(frames);
+				for (int i = 0; i < frames; i++)
+					decoded.add(executor.submit(new Callable<Object>() {
+						@Override
+						public Object call() throws Exception {
+							return decoder.decodeRaster(data, splitTiles);
+						}
+					}));
+				for (Future<?> f : decoded)
+					f.get();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			return best;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] encode(int w, int h, int tile) throws Exception {
+		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_USHORT_GRAY);
+		WritableRaster raster = bi.getRaster();
+		Random random = new Random(0);
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				raster.setSample(x, y, 0, (x * 7 + y * 3 + random.nextInt(50)) & 0xfff);
+		ImageWriter writer = new J2KImageWriterSpi().createWriterInstance();
+		J2KImageWriteParam param = (J2KImageWriteParam) writer.getDefaultWriteParam();
+		param.setWriteCodeStreamOnly(true);
+		param.setLossless(true);
+		param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setTiling(tile, tile, 0, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+		try {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(bi, null, null), param);
+		} finally {
+			ios.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	private static void print(String name, long nanos, int frames) {
+		System.out.println(String.format("%-28s %8d ms (%d ms/frame)", name, nanos / 1000000,
+				nanos / frames / 1000000));
+	}
+}
@@ -1,23 +1,48 @@
 import java.awt.*;
-import java.awt.MediaTracker;
 import java.awt.event.*;
-import com.sun.image.codec.jpeg.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.awt.geom.GeneralPath;
 import java.io.*;
 import javax.swing.*;
 import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
 
 public class JavaPicture {
 
+	// pictures processed in parallel over rows by map and filter
+	private static final int PARALLEL_PIXELS = 1 << 16;
+
 	public BufferedImage bimg;
-	public JFrame shower = new JFrame();
+	// created when the picture is shown, so pictures work headless
+	public JFrame shower;
 	public ImageIcon imgIcon;
 	public Canvas canvas;
 	public Image image;
 
+	// pixels of bimg if it is an INT_RGB or INT_ARGB picture, see pixelData
+	private BufferedImage dataImage;
+	private int[] data;
+
+	private static final ThreadLocal<Map<String, ImageWriter>> writers = new ThreadLocal<Map<String, ImageWriter>>() {
+		@Override
+		protected Map<String, ImageWriter> initialValue() {
+			return new HashMap<String, ImageWriter>();
+		}
+	};
+
 	/**
 	 * Constructor
 	 */
@@ -37,48 +62,82 @@ public class JavaPicture {
 	 * Load image
 	 */
 	public boolean loadImage(String filename) {
+		return loadImage(filename, null, 1);
+	}
+
+	/**
+	 * Loads a region of an image, decoding only every subsampling-th pixel
+	 * of every subsampling-th row. Reading a thumbnail or a detail of a
+	 * large image this way decodes a fraction of it.
+	 *
+	 * @param filename
+	 *            the image file, in any format ImageIO reads
+	 * @param region
+	 *            the region to read, or null for the whole image
+	 * @param subsampling
+	 *            1 to read every pixel
+	 * @return false if the file could not be read
+	 */
+	public boolean loadImage(String filename, Rectangle region, int subsampling) {
 		try {
-			/*
-			 * bimg = null; filename = "file://" + filename; URL u = new
-			 * URL(filename); File f = new File(u.getPath()); bimg =
-			 * ImageIO.read(f);
-			 */
-
-			Toolkit toolkit = Toolkit.getDefaultToolkit();
-			image = toolkit.getImage(filename);
-			MediaTracker mediaTracker = new MediaTracker(shower);
-			mediaTracker.addImage(image, 0);
+			ImageInputStream iis = ImageIO.createImageInputStream(new File(filename));
+			if (iis == null)
+				return false;
 			try {
-				mediaTracker.waitForID(0);
-			} catch (InterruptedException ie) {
-				// The file did not load
-				System.err.println(ie);
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if (!readers.hasNext())
+					return false;
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(iis, true, true);
+					ImageReadParam param = reader.getDefaultReadParam();
+					if (region != null)
+						param.setSourceRegion(region);
+					if (subsampling > 1)
+						param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+					setImage(reader.read(0, param));
+				} finally {
+					reader.dispose();
+				}
+			} finally {
+				iis.close();
 			}
-
-			bimg = new BufferedImage(image.getWidth(null), image.getHeight(null), bimg.TYPE_INT_RGB);
-			Graphics g = bimg.getGraphics();
-			g.drawImage(image, 0, 0, null);
-
 			return true;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
+	/**
+	 * Sets the picture to the given image, converted to INT_RGB if it is
+	 * stored otherwise.
+	 */
+	public void setImage(BufferedImage img) {
+		if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+			BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics g = rgb.getGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+			img = rgb;
+		}
+		bimg = img;
+		image = img;
+	}
+
 	public void createNewImage(int width, int height) {
 		bimg = null;
 		bimg = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 	}
 
 	public void repaintImage() {
-		if (shower.isVisible()) {
+		if (shower != null && shower.isVisible()) {
 			imgIcon.setImage(bimg.getScaledInstance(bimg.getWidth(), bimg.getHeight(), Image.SCALE_FAST));
 			shower.repaint();
 		}
 	}
 
 	public void showPictureWithTitle(String s) {
-		if (shower.isVisible()) {
+		if (shower != null && shower.isVisible()) {
 			imgIcon.setImage(bimg.getScaledInstance(bimg.getWidth(), bimg.getHeight(), Image.SCALE_FAST));
 			shower.setTitle(s);
 			shower.repaint();
@@ -94,6 +153,8 @@ public class JavaPicture {
 
 	/**
 	 * Saves the image represented by the JavaPicture object onto disk.
+	 * The format is chosen by the file name extension, JPEG if there is
+	 * none; JPEG images are written at the highest quality.
 	 * 
 	 * @param newfilename
 	 *            the file name to save to
@@ -101,33 +162,62 @@ public class JavaPicture {
 	 *                raised if the save fails
 	 */
 	public boolean saveImage(String newfilename) throws java.io.IOException {
-		FileOutputStream out;
-		JPEGImageEncoder jpeg;
-		File filen;
+		File filen = new File(newfilename);
+		int dot = newfilename.lastIndexOf('.');
+		String format = dot > newfilename.lastIndexOf(File.separatorChar) ? newfilename.substring(dot + 1) : "jpg";
+		ImageWriter writer = imageWriter(format);
+		if (writer == null) {
+			System.out.println("Unable to create a " + format + " encoder");
+			return false;
+		}
+		ImageOutputStream out;
 		try {
-			filen = new File(newfilename);
-			// if (filen.canWrite()){
-			// return false;}
-			out = new FileOutputStream(filen);
+			filen.delete();
+			out = ImageIO.createImageOutputStream(filen);
 		} catch (Exception e) {
+			out = null;
+		}
+		if (out == null) {
 			System.out.println("Sorry -- that filename (" + newfilename + ") isn't working");
 			return false;
 		}
-
 		try {
-			jpeg = JPEGCodec.createJPEGEncoder(out);
-		} catch (Exception e) {
-			System.out.println("Unable to create a JPEG encoder");
-			return false;
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (param.canWriteCompressed() && isJPEG(format)) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(1.0f);
+			}
+			writer.write(null, new IIOImage(bimg, null, null), param);
+		} finally {
+			writer.reset();
+			out.close();
 		}
-
-		JPEGEncodeParam param = jpeg.getDefaultJPEGEncodeParam(bimg);
-		param.setQuality(1.0f, true);
-		jpeg.encode(bimg, param);
-		out.close();
 		return true;
 	}
 
+	private static boolean isJPEG(String format) {
+		return format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg");
+	}
+
+	/**
+	 * Returns the writer for the format, created once per thread, as
+	 * creating one looks up the ImageIO plugins.
+	 */
+	private static ImageWriter imageWriter(String format) {
+		Map<String, ImageWriter> map = writers.get();
+		String key = format.toLowerCase();
+		ImageWriter writer = map.get(key);
+		if (writer == null) {
+			Iterator<ImageWriter> it = ImageIO.getImageWritersBySuffix(key);
+			if (!it.hasNext())
+				return null;
+			writer = it.next();
+			map.put(key, writer);
+		}
+		return writer;
+	}
+
 	/**
 	 * Returns the pixel value of a pixel in the picture, given its coordinates.
 	 *
@@ -141,7 +231,11 @@ public class JavaPicture {
 		// to access pixel at row 'j' and column 'i' from the upper-left corner
 		// of
 		// image.
-		return bimg.getRGB(x, y);
+		int[] data = pixelData();
+		if (data == null)
+			return bimg.getRGB(x, y);
+		checkBounds(x, y, 1, 1);
+		return data[y * bimg.getWidth() + x] | opaque();
 	}
 
 	/**
@@ -155,7 +249,222 @@ public class JavaPicture {
 	 *            the new rgb value of the pixel
 	 */
 	public void setBasicPixel(int x, int y, int rgb) {
-		bimg.setRGB(x, y, rgb);
+		int[] data = pixelData();
+		if (data == null) {
+			bimg.setRGB(x, y, rgb);
+			return;
+		}
+		checkBounds(x, y, 1, 1);
+		data[y * bimg.getWidth() + x] = rgb & ~opaque();
+	}
+
+	/**
+	 * Returns the pixel values of a region of the picture, row by row, as
+	 * getBasicPixel returns them.
+	 *
+	 * @param dst
+	 *            array to fill, or null to allocate one of w * h values
+	 * @return the pixel values
+	 */
+	public int[] getPixels(int x, int y, int w, int h, int[] dst) {
+		return getPixels(pixelData(), x, y, w, h, dst);
+	}
+
+	/**
+	 * @param data
+	 *            the result of pixelData
+	 */
+	private int[] getPixels(int[] data, int x, int y, int w, int h, int[] dst) {
+		if (dst == null)
+			dst = new int[w * h];
+		if (data == null)
+			return bimg.getRGB(x, y, w, h, dst, 0, w);
+		checkBounds(x, y, w, h);
+		int width = bimg.getWidth(), opaque = opaque();
+		for (int row = 0; row < h; row++) {
+			int src = (y + row) * width + x, off = row * w;
+			if (opaque == 0) {
+				System.arraycopy(data, src, dst, off, w);
+			} else {
+				for (int i = 0; i < w; i++)
+					dst[off + i] = data[src + i] | opaque;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Sets the pixel values of a region of the picture, row by row.
+	 */
+	public void setPixels(int x, int y, int w, int h, int[] src) {
+		setPixels(pixelData(), x, y, w, h, src);
+	}
+
+	private void setPixels(int[] data, int x, int y, int w, int h, int[] src) {
+		if (data == null) {
+			bimg.setRGB(x, y, w, h, src, 0, w);
+			return;
+		}
+		checkBounds(x, y, w, h);
+		int width = bimg.getWidth(), mask = ~opaque();
+		for (int row = 0; row < h; row++) {
+			int dst = (y + row) * width + x, off = row * w;
+			for (int i = 0; i < w; i++)
+				data[dst + i] = src[off + i] & mask;
+		}
+	}
+
+	/**
+	 * Returns the pixel values of row y.
+	 */
+	public int[] getRow(int y, int[] dst) {
+		return getPixels(0, y, bimg.getWidth(), 1, dst);
+	}
+
+	/**
+	 * Sets the pixel values of row y.
+	 */
+	public void setRow(int y, int[] src) {
+		setPixels(0, y, bimg.getWidth(), 1, src);
+	}
+
+	/**
+	 * Returns a region of the picture as red, green and blue bytes per pixel,
+	 * row by row.
+	 *
+	 * @param dst
+	 *            array to fill, or null to allocate one of w * h * 3 bytes
+	 * @return the samples
+	 */
+	public byte[] getRGBBytes(int x, int y, int w, int h, byte[] dst) {
+		if (dst == null)
+			dst = new byte[w * h * 3];
+		int[] row = new int[w];
+		for (int r = 0, j = 0; r < h; r++) {
+			getPixels(x, y + r, w, 1, row);
+			for (int i = 0; i < w; i++, j += 3) {
+				int rgb = row[i];
+				dst[j] = (byte) (rgb >> 16);
+				dst[j + 1] = (byte) (rgb >> 8);
+				dst[j + 2] = (byte) rgb;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Sets a region of the picture from red, green and blue bytes per pixel,
+	 * row by row.
+	 */
+	public void setRGBBytes(int x, int y, int w, int h, byte[] src) {
+		int[] row = new int[w];
+		for (int r = 0, j = 0; r < h; r++) {
+			for (int i = 0; i < w; i++, j += 3)
+				row[i] = 0xFF000000 | (src[j] & 0xff) << 16 | (src[j + 1] & 0xff) << 8 | (src[j + 2] & 0xff);
+			setPixels(x, y + r, w, 1, row);
+		}
+	}
+
+	/**
+	 * Replaces each pixel value by op applied to it. Large pictures are
+	 * processed in parallel over rows, so op must not depend on the order
+	 * of the pixels.
+	 */
+	public void map(final IntUnaryOperator op) {
+		final int[] data = pixelData();
+		final int width = bimg.getWidth();
+		if (data == null) {
+			filter(new RowFilter() {
+				public void filter(int y, int[] row) {
+					for (int i = 0; i < row.length; i++)
+						row[i] = op.applyAsInt(row[i]);
+				}
+			});
+			return;
+		}
+		final int opaque = opaque();
+		rows().forEach(new IntConsumer() {
+			public void accept(int y) {
+				for (int i = y * width, end = i + width; i < end; i++)
+					data[i] = op.applyAsInt(data[i] | opaque) & ~opaque;
+			}
+		});
+	}
+
+	/**
+	 * Processes the picture row by row: each row is passed to the filter and
+	 * written back. Large pictures are processed in parallel over rows, so
+	 * the filter must not depend on the order of the rows.
+	 */
+	public void filter(final RowFilter filter) {
+		// resolved once, pixelData is not safe to call from the row threads
+		final int[] data = pixelData();
+		final int width = bimg.getWidth();
+		rows().forEach(new IntConsumer() {
+			public void accept(int y) {
+				int[] row = getPixels(data, 0, y, width, 1, null);
+				filter.filter(y, row);
+				setPixels(data, 0, y, width, 1, row);
+			}
+		});
+	}
+
+	/**
+	 * Visits all pixels of the picture, row by row, through one JavaPixel
+	 * which is moved from pixel to pixel instead of allocating one per pixel.
+	 */
+	public void forEachPixel(Consumer<JavaPixel> action) {
+		JavaPixel pixel = new JavaPixel(this);
+		int w = bimg.getWidth(), h = bimg.getHeight();
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				action.accept(pixel.moveTo(x, y));
+	}
+
+	/**
+	 * Operation on the pixel values of one row, for filter.
+	 */
+	public interface RowFilter {
+		void filter(int y, int[] row);
+	}
+
+	private IntStream rows() {
+		IntStream rows = IntStream.range(0, bimg.getHeight());
+		return (long) bimg.getWidth() * bimg.getHeight() >= PARALLEL_PIXELS ? rows.parallel() : rows;
+	}
+
+	/**
+	 * Returns the pixels of an INT_RGB or INT_ARGB picture, one int per pixel
+	 * and row after row, or null if the picture is stored otherwise.
+	 */
+	private int[] pixelData() {
+		BufferedImage img = bimg;
+		if (img == dataImage)
+			return data;
+		int[] pixels = null;
+		int type = img.getType();
+		WritableRaster raster = img.getRaster();
+		if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getDataBuffer().getOffset() == 0
+				&& ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == img.getWidth())
+			pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+		data = pixels;
+		dataImage = img;
+		return pixels;
+	}
+
+	/**
+	 * Alpha bits of the pixel values of an INT_RGB picture, which does not
+	 * store them.
+	 */
+	private int opaque() {
+		return bimg.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+	}
+
+	private void checkBounds(int x, int y, int w, int h) {
+		if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > bimg.getWidth() || y + h > bimg.getHeight())
+			throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
 	}
 
 	/**
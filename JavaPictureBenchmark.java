@@ -0,0 +1,104 @@
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Compares inverting a synthetic picture with the per pixel access of
+ * {@link JavaPicture}: a new {@link JavaPixel} per pixel, getRGB/setRGB per
+ * pixel on the BufferedImage as getBasicPixel did before, getBasicPixel on
+ * the raster, one JavaPixel moved over all pixels, row access and map.
+ *
+ * <pre>
+ * java JavaPictureBenchmark [width] [height] [iterations]
+ * </pre>
+ */
+public class JavaPictureBenchmark {
+
+	private static final IntUnaryOperator INVERT = new IntUnaryOperator() {
+		@Override
+		public int applyAsInt(int rgb) {
+			return rgb ^ 0x00FFFFFF;
+		}
+	};
+
+	public static void main(String[] args) {
+		int w = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		final JavaPicture p = new JavaPicture();
+		p.createNewImage(w, h);
+		int[] rgb = new int[w * h];
+		Random random = new Random(0);
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = random.nextInt();
+		p.setPixels(0, 0, w, h, rgb);
+		System.out.println(w + "x" + h + ", best of " + iterations + " runs, "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+
+		long t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++) {
+					JavaPixel pixel = p.getPixel(x, y);
+					pixel.setRGB(255 - pixel.getRed(), 255 - pixel.getGreen(), 255 - pixel.getBlue());
+				}
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("new JavaPixel per pixel", t);
+
+		t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					p.bimg.setRGB(x, y, p.bimg.getRGB(x, y) ^ 0x00FFFFFF);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("getRGB/setRGB per pixel", t);
+
+		t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					p.setBasicPixel(x, y, p.getBasicPixel(x, y) ^ 0x00FFFFFF);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("getBasicPixel per pixel", t);
+
+		t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			p.forEachPixel(pixel -> pixel.setRGB(255 - pixel.getRed(), 255 - pixel.getGreen(),
+					255 - pixel.getBlue()));
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("forEachPixel", t);
+
+		int[] row = new int[w];
+		t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			for (int y = 0; y < h; y++) {
+				p.getRow(y, row);
+				for (int x = 0; x < w; x++)
+					row[x] ^= 0x00FFFFFF;
+				p.setRow(y, row);
+			}
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("getRow/setRow", t);
+
+		t = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			p.map(INVERT);
+			t = Math.min(t, System.nanoTime() - start);
+		}
+		print("map", t);
+	}
+
+	private static void print(String name, long nanos) {
+		System.out.println(String.format("%-24s %8d us", name, nanos / 1000));
+	}
+}
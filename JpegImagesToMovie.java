@@ -29,7 +29,9 @@
  */
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.awt.Dimension;
 
 import javax.media.*;
@@ -70,7 +72,27 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
         
 
     public boolean doIt(int width, int height, int frameRate, Vector inFiles, MediaLocator outML) {
-	ImageDataSource ids = new ImageDataSource(width, height, frameRate, inFiles);
+	return doIt(new ImageDataSource(width, height, frameRate, inFiles), outML);
+    }
+
+    /**
+     * Same as above, but pulls the JPEG frames from the given source
+     * instead of reading them from image files.
+     */
+    public boolean doIt(int width, int height, int frameRate, FrameSource frames, MediaLocator outML) {
+	return doIt(new ImageDataSource(width, height, frameRate, frames), outML);
+    }
+
+    private boolean doIt(ImageDataSource ids, MediaLocator outML) {
+	try {
+	    return process(ids, outML);
+	} finally {
+	    // stops the prefetch thread if the processor never got to the end
+	    ids.disconnect();
+	}
+    }
+
+    private boolean process(ImageDataSource ids, MediaLocator outML) {
 
 	Processor p;
 
@@ -365,6 +387,52 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
     }
 
 
+    /**
+     * Source of in-memory JPEG frames, pulled in order by the
+     * ImageSourceStream.
+     */
+    public interface FrameSource {
+
+	/**
+	 * Returns the next JPEG frame, or null after the last one.
+	 */
+	byte[] nextFrame() throws IOException;
+    }
+
+
+    /**
+     * Returns the JPEGFormat decimation of a JPEG image from the sampling
+     * factors in its SOF marker: Format.NOT_SPECIFIED for grayscale
+     * images, which have a single component, and DEC_422 if the image
+     * has no SOF marker or uncommon sampling factors.
+     */
+    static int decimation(byte[] jpeg) {
+	int i = 2;
+	while (i + 4 <= jpeg.length && (jpeg[i] & 0xff) == 0xff) {
+	    int marker = jpeg[i + 1] & 0xff;
+	    int length = ((jpeg[i + 2] & 0xff) << 8) | (jpeg[i + 3] & 0xff);
+	    if (marker >= 0xc0 && marker <= 0xcf
+			&& marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+		// SOFn: length, precision, height, width, components
+		if (i + 11 >= jpeg.length)
+		    break;
+		int components = jpeg[i + 9] & 0xff;
+		if (components == 1)
+		    return Format.NOT_SPECIFIED;
+		switch (jpeg[i + 11] & 0xff) {
+		case 0x22: return JPEGFormat.DEC_420;
+		case 0x21: return JPEGFormat.DEC_422;
+		case 0x11: return JPEGFormat.DEC_444;
+		case 0x41: return JPEGFormat.DEC_411;
+		}
+		break;
+	    }
+	    i += 2 + length;
+	}
+	return JPEGFormat.DEC_422;
+    }
+
+
     ///////////////////////////////////////////////
     //
     // Inner classes.
@@ -385,6 +453,11 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
 	    streams[0] = new ImageSourceStream(width, height, frameRate, images);
 	}
 
+	ImageDataSource(int width, int height, int frameRate, FrameSource frames) {
+	    streams = new ImageSourceStream[1];
+	    streams[0] = new ImageSourceStream(width, height, frameRate, frames);
+	}
+
 	public void setLocator(MediaLocator source) {
 	}
 
@@ -404,6 +477,7 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
 	}
 
 	public void disconnect() {
+	    streams[0].close();
 	}
 
 	public void start() {
@@ -443,31 +517,141 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
      */
     class ImageSourceStream implements PullBufferStream {
 
+	// frames read ahead of the muxer by the prefetch thread
+	static final int READ_AHEAD = 8;
+
 	Vector images;
+	FrameSource frames;
 	int width, height;
 	VideoFormat format;
 
 	int nextImage = 0;	// index of the next image to be read.
+	int nextFetch = 0;	// index of the next image to be prefetched.
 	boolean ended = false;
+	IOException failure;
+
+	final ArrayBlockingQueue<Frame> prefetched = new ArrayBlockingQueue<Frame>(READ_AHEAD);
+	// buffers handed back by the muxer, reused to read image files
+	final ArrayBlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(READ_AHEAD + 2);
+	Thread prefetcher;
+	volatile boolean closed;
+
+	/**
+	 * A prefetched frame; data is null after the last frame or if
+	 * reading failed.
+	 */
+	class Frame {
+	    byte[] data;
+	    int length;
+	    String name;
+	    IOException error;
+	}
 
 	public ImageSourceStream(int width, int height, int frameRate, Vector images) {
 	    this.width = width;
 	    this.height = height;
 	    this.images = images;
+	    start(frameRate);
+	}
+
+	public ImageSourceStream(int width, int height, int frameRate, FrameSource frames) {
+	    this.width = width;
+	    this.height = height;
+	    this.frames = frames;
+	    start(frameRate);
+	}
 
-	    format = new JPEGFormat(new Dimension(width, height),
+	/**
+	 * Reads the first frame to find its decimation, then starts
+	 * prefetching the following ones.
+	 */
+	private void start(int frameRate) {
+	    Frame first = fetch();
+	    int decimation = first.data != null
+		? decimation(Arrays.copyOf(first.data, first.length))
+		: JPEGFormat.DEC_422;
+	    format = jpegFormat(width, height, frameRate, decimation);
+	    prefetched.add(first);
+	    if (first.data == null)
+		return;
+	    prefetcher = new Thread(new Runnable() {
+		public void run() {
+		    prefetch();
+		}
+	    }, "prefetch");
+	    prefetcher.setDaemon(true);
+	    prefetcher.start();
+	}
+
+	private VideoFormat jpegFormat(int width, int height, int frameRate, int decimation) {
+	    return new JPEGFormat(new Dimension(width, height),
 				Format.NOT_SPECIFIED,
 				Format.byteArray,
 				(float)frameRate,
-                                75,
-                                JPEGFormat.DEC_422);
+				75,
+				decimation);
+	}
+
+	private void prefetch() {
+	    try {
+		Frame frame;
+		do {
+		    frame = fetch();
+		    if (closed)
+			return;
+		    prefetched.put(frame);
+		} while (frame.data != null);
+	    } catch (InterruptedException e) {
+		// stopped
+	    }
+	}
+
+	/**
+	 * Reads the next frame from its file into a pooled buffer, or takes
+	 * it from the FrameSource.
+	 */
+	private Frame fetch() {
+	    Frame frame = new Frame();
+	    try {
+		if (frames != null) {
+		    frame.data = frames.nextFrame();
+		    frame.length = frame.data != null ? frame.data.length : 0;
+		} else if (nextFetch < images.size()) {
+		    frame.name = (String)images.elementAt(nextFetch++);
+		    RandomAccessFile raFile = new RandomAccessFile(frame.name, "r");
+		    try {
+			int length = (int)raFile.length();
+			byte[] data = pool.poll();
+			if (data == null || data.length < length)
+			    data = new byte[length];
+			raFile.readFully(data, 0, length);
+			frame.data = data;
+			frame.length = length;
+		    } finally {
+			raFile.close();
+		    }
+		}
+	    } catch (IOException e) {
+		frame.data = null;
+		frame.error = e;
+	    }
+	    return frame;
 	}
 
 	/**
-	 * We should never need to block assuming data are read from files.
+	 * Blocks only if the prefetch thread has not read the next frame
+	 * yet.
 	 */
 	public boolean willReadBlock() {
-	    return false;
+	    return !ended && failure == null && prefetched.isEmpty();
+	}
+
+	/**
+	 * Returns the number of frames read ahead and waiting for the
+	 * muxer.
+	 */
+	public int getQueueDepth() {
+	    return prefetched.size();
 	}
 
 	/**
@@ -475,57 +659,69 @@ public class JpegImagesToMovie implements ControllerListener, DataSinkListener {
 	 * of video data.
 	 */
  	public void read(Buffer buf) throws IOException {
+	    if (failure != null)
+		throw failure;
 
-	    // Check if we've finished all the frames.
-	    if (nextImage >= images.size()) {
-		// We are done.  Set EndOfMedia.
-		//System.err.println("Done reading all images.");
+	    // the prefetch thread has exited after the last frame
+	    if (ended) {
 		buf.setEOM(true);
 		buf.setOffset(0);
 		buf.setLength(0);
-		ended = true;
 		return;
 	    }
 
-            //For JES, we pass around JavaPictures
-            String imageFile = (String)images.elementAt(nextImage);
-            
-//            JavaPicture image = (JavaPicture)images.elementAt(nextImage);
-//            image.saveImage(".movtemp.jpg");
-//            String imageFile = ".movtemp.jpg";
-            nextImage++;
+	    // the muxer is done with the frame it was given last
+	    if (images != null && buf.getData() instanceof byte[])
+		pool.offer((byte[])buf.getData());
 
-	    //System.err.println("  - reading image file: " + imageFile);
+	    MuxWriteEvent event = new MuxWriteEvent();
+	    event.begin();
 
-	    // Open a random access file for the next image. 
-	    RandomAccessFile raFile;
-	    raFile = new RandomAccessFile(imageFile, "r");
-
-	    byte data[] = null;
-
-	    // Check the input buffer type & size.
-
-	    if (buf.getData() instanceof byte[])
-		data = (byte[])buf.getData();
-
-	    // Check to see the given buffer is big enough for the frame.
-	    if (data == null || data.length < raFile.length()) {
-		data = new byte[(int)raFile.length()];
-		buf.setData(data);
+	    Frame frame;
+	    try {
+		frame = prefetched.take();
+	    } catch (InterruptedException e) {
+		throw new InterruptedIOException();
+	    }
+	    if (frame.error != null) {
+		failure = frame.error;
+		throw failure;
 	    }
 
-	    // Read the entire JPEG image from the file.
-	    raFile.readFully(data, 0, (int)raFile.length());
-
-	    //System.err.println("    read " + raFile.length() + " bytes.");
+	    // Check if we've finished all the frames.
+	    if (frame.data == null) {
+		buf.setEOM(true);
+		buf.setOffset(0);
+		buf.setLength(0);
+		ended = true;
+		return;
+	    }
 
+	    buf.setData(frame.data);
 	    buf.setOffset(0);
-	    buf.setLength((int)raFile.length());
+	    buf.setLength(frame.length);
 	    buf.setFormat(format);
 	    buf.setFlags(buf.getFlags() | buf.FLAG_KEY_FRAME);
+	    event.record(frame.name, nextImage++, null, frame.length);
+	}
 
-	    // Close the random access file.
-	    raFile.close();
+	/**
+	 * Stops prefetching, if the muxer stops before the last frame, and
+	 * waits for the prefetch thread to exit, so the frame source is no
+	 * longer used after close returns.
+	 */
+	void close() {
+	    closed = true;
+	    if (prefetcher == null)
+		return;
+	    prefetcher.interrupt();
+	    // makes room for a frame fetched before the interrupt
+	    prefetched.clear();
+	    try {
+		prefetcher.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
 	}
 
 	/**
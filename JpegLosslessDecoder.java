@@ -0,0 +1,404 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+
+/**
+ * Decoder for grayscale JPEG Lossless frames (ITU-T T.81 Process 14, Huffman
+ * coded), working on the frame bytes located by {@link ItemParser} instead of
+ * the ImageIO DICOM reader. The frame is decoded straight into a pooled
+ * <code>short[]</code> raster of stored values and rendered by the compiled
+ * {@link CompositeLut}.
+ *
+ * Huffman codes of up to {@link #LOOKUP_BITS} bits, which are nearly all
+ * difference categories in practice, are decoded by one table lookup on the
+ * next bits of a 64 bit buffer. The predictor is chosen once per row, not per
+ * pixel, so rows after the first with selection value 1 (SV1, the one of
+ * JPEG Lossless, Transfer Syntax 1.2.840.10008.1.2.4.70) reconstruct each
+ * sample as <code>left + difference</code>. Frames are decoded in parallel to
+ * each other by the converter; concurrent calls of {@link #decode} share no
+ * state but the pool.
+ *
+ * Frames this decoder does not handle, with a frame size other than Rows and
+ * Columns or restart intervals which are not whole rows, are decoded by the
+ * fallback decoder, the ImageIO DICOM reader as before.
+ */
+public class JpegLosslessDecoder implements FrameDecoder {
+
+	static final int LOOKUP_BITS = 9;
+
+	private static final int SOI = 0xD8, EOI = 0xD9, SOF3 = 0xC3, DHT = 0xC4, SOS = 0xDA, DRI = 0xDD,
+			RST0 = 0xD0;
+
+	private final FragmentIndex index;
+
+	private final int rows;
+
+	private final int columns;
+
+	private final CompositeLut lut;
+
+	private final OverlayBitmaps overlays;
+
+	private final FrameDecoder fallback;
+
+	private final ConcurrentLinkedQueue<short[]> pool = new ConcurrentLinkedQueue<short[]>();
+
+	/**
+	 * @param fallback
+	 *            decodes the frames this decoder does not handle; it should
+	 *            open its resources on first use
+	 */
+	public JpegLosslessDecoder(FragmentIndex index, CompositeLut lut, OverlayBitmaps overlays,
+			FrameDecoder fallback) {
+		Attributes attrs = index.getHeader().getAttributes();
+		this.index = index;
+		this.rows = attrs.getInt(Tag.Rows, 0);
+		this.columns = attrs.getInt(Tag.Columns, 0);
+		this.lut = lut;
+		this.overlays = overlays;
+		this.fallback = fallback;
+	}
+
+	public static JpegLosslessDecoder open(File file, CompositeLut lut, OverlayBitmaps overlays,
+			FrameDecoder fallback) throws IOException {
+		return new JpegLosslessDecoder(FragmentIndex.open(file), lut, overlays, fallback);
+	}
+
+	/** thrown for valid frames this decoder does not handle */
+	static final class UnsupportedFrameException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedFrameException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> for JPEG Lossless images with one sample per
+	 * pixel whose rendering compiled into <code>lut</code>.
+	 */
+	public static boolean supports(DicomHeader header, CompositeLut lut) {
+		String tsuid = header.getTransferSyntax();
+		return (UID.JPEGLossless.equals(tsuid) || UID.JPEGLosslessNonHierarchical14.equals(tsuid)) && lut != null
+				&& header.getAttributes().getInt(Tag.SamplesPerPixel, 1) == 1;
+	}
+
+	@Override
+	public BufferedImage decode(int frame) throws IOException {
+		byte[] src = index.readFrame(frame);
+		short[] dst = pool.poll();
+		if (dst == null)
+			dst = new short[rows * columns];
+		try {
+			try {
+				decode(src, dst, columns, rows);
+			} catch (UnsupportedFrameException e) {
+				return fallback.decode(frame);
+			}
+			BufferedImage bi = lut.apply(Raster.createInterleavedRaster(new DataBufferUShort(dst, dst.length),
+					columns, rows, columns, 1, new int[] { 0 }, null));
+			if (overlays != null)
+				overlays.apply(bi.getRaster(), frame);
+			return bi;
+		} finally {
+			pool.offer(dst);
+		}
+	}
+
+	@Override
+	public void release(BufferedImage bi) {
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.clear();
+		try {
+			fallback.close();
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Decodes one JPEG Lossless frame of one component into
+	 * <code>dst</code>, <code>columns</code> samples per row.
+	 */
+	static void decode(byte[] src, short[] dst, int columns, int rows) throws IOException {
+		HuffmanTable[] tables = new HuffmanTable[4];
+		int precision = 0, restartInterval = 0;
+		if (src.length < 2 || (src[0] & 0xff) != 0xFF || (src[1] & 0xff) != SOI)
+			throw new IOException("No JPEG SOI marker");
+		int pos = 2;
+		while (true) {
+			while (pos < src.length && (src[pos] & 0xff) != 0xFF)
+				pos++;
+			while (pos < src.length && (src[pos] & 0xff) == 0xFF)
+				pos++;
+			if (pos + 2 >= src.length)
+				throw new IOException("No JPEG SOS marker");
+			int marker = src[pos++] & 0xff;
+			if (marker == EOI)
+				throw new IOException("No JPEG SOS marker");
+			int length = ushort(src, pos);
+			int end = pos + length;
+			if (length < 2 || end > src.length)
+				throw new IOException("Invalid length of JPEG marker segment 0xFF" + Integer.toHexString(marker));
+			switch (marker) {
+			case SOF3:
+				precision = src[pos + 2] & 0xff;
+				int height = ushort(src, pos + 3), width = ushort(src, pos + 5);
+				if ((src[pos + 7] & 0xff) != 1)
+					throw new IOException("JPEG Lossless frame with " + (src[pos + 7] & 0xff) + " components");
+				if (width != columns || height != 0 && height != rows)
+					throw new UnsupportedFrameException("JPEG frame size " + width + "x" + height + " does not match "
+							+ columns + "x" + rows);
+				if (precision < 2 || precision > 16)
+					throw new IOException("Invalid JPEG Lossless precision: " + precision);
+				break;
+			case DHT:
+				for (int p = pos + 2; p < end;) {
+					int th = src[p] & 0x0f;
+					if ((src[p] & 0xf0) != 0 || th > 3)
+						throw new IOException("Invalid JPEG Lossless Huffman table: 0x"
+								+ Integer.toHexString(src[p] & 0xff));
+					tables[th] = new HuffmanTable(src, p + 1);
+					p = tables[th].end;
+				}
+				break;
+			case DRI:
+				restartInterval = ushort(src, pos + 2);
+				break;
+			case SOS:
+				if (precision == 0)
+					throw new IOException("No JPEG SOF3 marker before SOS");
+				if ((src[pos + 2] & 0xff) != 1)
+					throw new IOException("JPEG Lossless scan with " + (src[pos + 2] & 0xff) + " components");
+				HuffmanTable table = tables[(src[pos + 4] & 0xff) >> 4];
+				if (table == null)
+					throw new IOException("Missing JPEG Huffman table");
+				int predictor = src[pos + 5] & 0xff;
+				int pointTransform = src[pos + 7] & 0x0f;
+				if (predictor < 1 || predictor > 7)
+					throw new IOException("Invalid JPEG Lossless predictor: " + predictor);
+				if (restartInterval % columns != 0)
+					throw new UnsupportedFrameException("JPEG Lossless restart interval " + restartInterval
+							+ " is no multiple of the row length " + columns);
+				new Scan(src, end, table).decode(dst, columns, rows, predictor, precision, pointTransform,
+						restartInterval / columns);
+				return;
+			default:
+				// SOF markers other than SOF3, JPG and DAC
+				if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC8 && marker != 0xCC)
+					throw new IOException("Not a JPEG Lossless Huffman frame: SOF 0xFF"
+							+ Integer.toHexString(marker));
+			}
+			pos = end;
+		}
+	}
+
+	private static int ushort(byte[] b, int i) {
+		return (b[i] & 0xff) << 8 | (b[i + 1] & 0xff);
+	}
+
+	/**
+	 * Huffman table of difference categories, with the lookup table for codes
+	 * of up to {@link #LOOKUP_BITS} bits and the canonical code limits of
+	 * T.81 F.2.2.3 for longer ones.
+	 */
+	static final class HuffmanTable {
+
+		/** code length &lt;&lt; 8 | category, 0 for longer codes */
+		final short[] lookup = new short[1 << LOOKUP_BITS];
+
+		final int[] maxCode = new int[18];
+
+		final int[] valOffset = new int[17];
+
+		final byte[] values;
+
+		final int end;
+
+		HuffmanTable(byte[] b, int pos) throws IOException {
+			int count = 0;
+			for (int i = 0; i < 16; i++)
+				count += b[pos + i] & 0xff;
+			if (count > 256 || pos + 16 + count > b.length)
+				throw new IOException("Invalid JPEG Huffman table");
+			values = new byte[count];
+			System.arraycopy(b, pos + 16, values, 0, count);
+			end = pos + 16 + count;
+			int code = 0, k = 0;
+			for (int len = 1; len <= 16; len++) {
+				int n = b[pos + len - 1] & 0xff;
+				if (code + n > 1 << len)
+					throw new IOException("Invalid JPEG Huffman table");
+				valOffset[len] = k - code;
+				for (int i = 0; i < n; i++, k++, code++) {
+					if (len <= LOOKUP_BITS) {
+						int shift = LOOKUP_BITS - len;
+						short e = (short) (len << 8 | values[k] & 0xff);
+						for (int j = code << shift, last = (code + 1) << shift; j < last; j++)
+							lookup[j] = e;
+					}
+				}
+				maxCode[len] = n > 0 ? code - 1 : -1;
+				code <<= 1;
+			}
+			maxCode[17] = Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Entropy coded data of one scan, read MSB first through a 64 bit buffer,
+	 * with stuffed zero bytes removed. At a marker the buffer is filled with
+	 * zero bits until the decoder resynchronizes on the next restart marker.
+	 */
+	static final class Scan {
+
+		private final byte[] b;
+
+		private final HuffmanTable table;
+
+		private int pos;
+
+		private long buffer;
+
+		private int bits;
+
+		Scan(byte[] b, int pos, HuffmanTable table) {
+			this.b = b;
+			this.pos = pos;
+			this.table = table;
+		}
+
+		private void fill() {
+			while (bits <= 56) {
+				int c = 0;
+				if (pos < b.length) {
+					c = b[pos] & 0xff;
+					if (c != 0xFF)
+						pos++;
+					else if (pos + 1 < b.length && b[pos + 1] == 0)
+						pos += 2;
+					else
+						c = 0;
+				}
+				buffer |= (long) c << (56 - bits);
+				bits += 8;
+			}
+		}
+
+		/** @return the next difference value */
+		int difference() throws IOException {
+			if (bits < 32)
+				fill();
+			int e = table.lookup[(int) (buffer >>> (64 - LOOKUP_BITS))];
+			int len, s;
+			if (e != 0) {
+				len = e >> 8;
+				s = e & 0xff;
+			} else {
+				len = LOOKUP_BITS + 1;
+				int code = (int) (buffer >>> (64 - len));
+				while (code > table.maxCode[len])
+					code = (int) (buffer >>> (64 - ++len));
+				if (len > 16)
+					throw new IOException("Invalid JPEG Huffman code");
+				s = table.values[code + table.valOffset[len]] & 0xff;
+			}
+			buffer <<= len;
+			bits -= len;
+			if (s == 0)
+				return 0;
+			if (s >= 16)
+				return 32768;
+			int v = (int) (buffer >>> (64 - s));
+			buffer <<= s;
+			bits -= s;
+			// T.81 F.2.2.1 EXTEND: values below 2^(s-1) are negative
+			return v + (((v - (1 << (s - 1))) >> 31) & (1 - (1 << s)));
+		}
+
+		/** discards the buffered bits and skips the next RSTn marker */
+		private void restart() throws IOException {
+			buffer = 0;
+			bits = 0;
+			while (pos + 1 < b.length && !((b[pos] & 0xff) == 0xFF && (b[pos + 1] & 0xf8) == RST0))
+				pos++;
+			if (pos + 1 >= b.length)
+				throw new IOException("Missing JPEG restart marker");
+			pos += 2;
+		}
+
+		/**
+		 * @param restartRows
+		 *            rows per restart interval, 0 without restart markers
+		 */
+		void decode(short[] dst, int w, int h, int predictor, int precision, int pointTransform, int restartRows)
+				throws IOException {
+			int mask = 0xffff;
+			int initial = 1 << (precision - pointTransform - 1);
+			for (int y = 0, o = 0; y < h; y++, o += w) {
+				boolean first = y == 0;
+				if (restartRows != 0 && y != 0 && y % restartRows == 0) {
+					restart();
+					first = true;
+				}
+				if (first) {
+					// first row of the scan or of a restart interval predicts from the left
+					int v = (initial + difference()) & mask;
+					dst[o] = (short) v;
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) (v = (v + difference()) & mask);
+					continue;
+				}
+				int u = o - w;
+				int v = ((dst[u] & mask) + difference()) & mask;
+				dst[o] = (short) v;
+				switch (predictor) {
+				case 1:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) (v = (v + difference()) & mask);
+					break;
+				case 2:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((dst[u + x] & mask) + difference());
+					break;
+				case 3:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((dst[u + x - 1] & mask) + difference());
+					break;
+				case 4:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((dst[o + x - 1] & mask) + (dst[u + x] & mask)
+								- (dst[u + x - 1] & mask) + difference());
+					break;
+				case 5:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((dst[o + x - 1] & mask)
+								+ (((dst[u + x] & mask) - (dst[u + x - 1] & mask)) >> 1) + difference());
+					break;
+				case 6:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((dst[u + x] & mask)
+								+ (((dst[o + x - 1] & mask) - (dst[u + x - 1] & mask)) >> 1) + difference());
+					break;
+				default:
+					for (int x = 1; x < w; x++)
+						dst[o + x] = (short) ((((dst[o + x - 1] & mask) + (dst[u + x] & mask)) >> 1) + difference());
+				}
+			}
+			if (pointTransform != 0)
+				for (int i = 0, n = w * h; i < n; i++)
+					dst[i] = (short) (dst[i] << pointTransform);
+		}
+	}
+}
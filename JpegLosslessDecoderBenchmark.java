@@ -0,0 +1,144 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+
+/**
+ * Compares decoding all frames of a grayscale JPEG Lossless file the way
+ * Dcm2Jpg did before, stored values read by the ImageIO DICOM reader and
+ * rendered by a {@link CompositeLut}, against {@link JpegLosslessDecoder} on
+ * one thread and on all cores, and checks that both decode the same stored
+ * values.
+ *
+ * <pre>
+ * java JpegLosslessDecoderBenchmark CT-MONO2-16-chest.dcm [iterations]
+ * </pre>
+ */
+public class JpegLosslessDecoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java JpegLosslessDecoderBenchmark <jpeg-lossless-file> [iterations]");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		DicomHeader header = DicomHeader.read(file);
+		Attributes attrs = header.getAttributes();
+		CompositeLut lut = CompositeLut.compile(attrs, null, 0, 0, 0, 0, true, true);
+		if (!JpegLosslessDecoder.supports(header, lut)) {
+			System.err.println(file + ": not a grayscale JPEG Lossless image rendered by one table");
+			System.exit(2);
+		}
+		int frames = header.getNumberOfFrames();
+		try {
+			decodeFirstFrame(file, attrs);
+		} catch (JpegLosslessDecoder.UnsupportedFrameException e) {
+			System.err.println(file + ": decoded by the ImageIO reader: " + e.getMessage());
+			System.exit(2);
+		}
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("DICOM").next();
+		long imageio = Long.MAX_VALUE;
+		Raster expected = null;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			ImageInputStream iis = ImageIO.createImageInputStream(file);
+			try {
+				reader.setInput(iis);
+				for (int i = 0; i < frames; i++)
+					lut.apply(reader.readRaster(i, null));
+				if (expected == null)
+					expected = reader.readRaster(0, null);
+			} finally {
+				iis.close();
+			}
+			imageio = Math.min(imageio, System.nanoTime() - start);
+		}
+
+		long serial = Long.MAX_VALUE;
+		// frames are supported, as checked above, so no fallback is needed
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			JpegLosslessDecoder decoder = JpegLosslessDecoder.open(file, lut, null, null);
+			try {
+				for (int i = 0; i < frames; i++)
+					decoder.release(decoder.decode(i));
+			} finally {
+				decoder.close();
+			}
+			serial = Math.min(serial, System.nanoTime() - start);
+		}
+
+		long parallel = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			final JpegLosslessDecoder decoder = JpegLosslessDecoder.open(file, lut, null, null);
+			try {
+				List<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>(frames);
+				for (int i = 0; i < frames; i++) {
+					final int frame = i;
+					decoded.add(ForkJoinPool.commonPool().submit(new Callable<BufferedImage>() {
+						@Override
+						public BufferedImage call() throws Exception {
+							return decoder.decode(frame);
+						}
+					}));
+				}
+				for (Future<BufferedImage> f : decoded)
+					decoder.release(f.get());
+			} finally {
+				decoder.close();
+			}
+			parallel = Math.min(parallel, System.nanoTime() - start);
+		}
+
+		System.out.println(file + ": " + frames + " frames, best of " + iterations + " runs");
+		print("ImageIO readRaster + table", imageio, frames);
+		print("JpegLosslessDecoder, 1 thread", serial, frames);
+		print("JpegLosslessDecoder, parallel", parallel, frames);
+		diff(file, attrs, expected);
+	}
+
+	private static void print(String name, long nanos, int frames) {
+		System.out.println(String.format("%-30s %8d us (%d us/frame)", name, nanos / 1000, nanos / frames / 1000));
+	}
+
+	private static short[] decodeFirstFrame(File file, Attributes attrs) throws Exception {
+		int w = attrs.getInt(Tag.Columns, 0), h = attrs.getInt(Tag.Rows, 0);
+		FragmentIndex index = FragmentIndex.open(file);
+		short[] dst = new short[w * h];
+		try {
+			JpegLosslessDecoder.decode(index.readFrame(0), dst, w, h);
+		} finally {
+			index.close();
+		}
+		return dst;
+	}
+
+	/** reports stored values of the first frame decoded differently from the reader */
+	private static void diff(File file, Attributes attrs, Raster expected) throws Exception {
+		int w = expected.getWidth(), h = expected.getHeight();
+		short[] actual = decodeFirstFrame(file, attrs);
+		int[] row = new int[w];
+		int differing = 0;
+		for (int y = 0; y < h; y++) {
+			expected.getSamples(expected.getMinX(), expected.getMinY() + y, w, 1, 0, row);
+			for (int x = 0; x < w; x++)
+				if ((row[x] & 0xffff) != (actual[y * w + x] & 0xffff))
+					differing++;
+		}
+		System.out.println("first frame: " + differing + " of " + w * h + " stored values differ");
+	}
+}
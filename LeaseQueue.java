@@ -0,0 +1,429 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job queue in a directory, shared by any number of worker processes on one
+ * host or on a shared volume, without a broker. Each job is a small file
+ * holding the source file and the output directory:
+ * <ul>
+ * <li><code>ready/&lt;job&gt;</code> waits for a worker,
+ * <li><code>leased/&lt;job&gt;~&lt;worker&gt;~&lt;expiry&gt;</code> is being
+ * converted by a worker until the expiry time, in milliseconds since the
+ * epoch,
+ * <li><code>done/&lt;job&gt;</code> and <code>failed/&lt;job&gt;</code> are
+ * finished.
+ * </ul>
+ * Every transition is an atomic rename, so of several workers renaming the
+ * same file exactly one succeeds and owns the job. Workers renew their leases
+ * while the conversion makes progress, which is that its output changed
+ * within the lease time. When the ready jobs run out, a worker steals leases
+ * that expired because their worker died or hung, and converts them again. Each
+ * lease converts into its own hidden directory next to the output directory,
+ * which replaces the output directory only if the job is done while the lease
+ * is still held, so a hung worker never writes into the output of another.
+ * Clocks of the hosts sharing a queue must agree
+ * to well within the lease time.
+ */
+public class LeaseQueue implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(LeaseQueue.class);
+
+	private static final char SEP = '~';
+
+	/** suffix of the work directory of a lease after the output name */
+	private static final Pattern WORK_SUFFIX = Pattern
+			.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+	/** ready jobs a worker considers per lease, in random order */
+	private static final int LEASE_CANDIDATES = 64;
+
+	private final Path ready;
+
+	private final Path leased;
+
+	private final Path done;
+
+	private final Path failed;
+
+	private final String worker = ManagementFactory.getRuntimeMXBean().getName().replace(SEP, '_');
+
+	private final long leaseMillis;
+
+	private final Map<String, Path> leases = new ConcurrentHashMap<String, Path>();
+
+	/** output of the conversions of the leased jobs, watched for progress */
+	private final Map<String, Progress> progress = new ConcurrentHashMap<String, Progress>();
+
+	private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "lease-renewer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public LeaseQueue(File dir, long leaseMillis) throws IOException {
+		Path root = dir.toPath().toAbsolutePath();
+		this.ready = Files.createDirectories(root.resolve("ready"));
+		this.leased = Files.createDirectories(root.resolve("leased"));
+		this.done = Files.createDirectories(root.resolve("done"));
+		this.failed = Files.createDirectories(root.resolve("failed"));
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Adds a job for each file below <code>srcs</code>, with the output
+	 * directories laid out as with {@link BatchScheduler#submit}, or below
+	 * the mirrored absolute source paths if sources of the same name would
+	 * share output directories.
+	 *
+	 * @return number of added jobs
+	 */
+	public int enqueue(List<File> srcs, File dest) throws IOException {
+		final Path out = dest.toPath().toAbsolutePath();
+		final boolean mirror = ResumableBatch.layoutCollides(srcs);
+		if (mirror)
+			log.info("Sources of the same name in {}, mirroring absolute paths below {}", srcs, out);
+		final int[] count = new int[1];
+		for (File src : srcs) {
+			final Path root = src.toPath().toAbsolutePath();
+			final boolean dir = Files.isDirectory(root);
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (attrs.isRegularFile()) {
+						enqueue(file, mirror ? ResumableBatch.mirror(out, file)
+								: out.resolve((dir ? root.relativize(file) : file.getFileName()).toString()));
+						count[0]++;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		return count[0];
+	}
+
+	/**
+	 * Adds a job converting <code>src</code> into <code>outDir</code>. The
+	 * job file is written under a hidden name and renamed, so workers never
+	 * see it incomplete.
+	 */
+	public void enqueue(Path src, Path outDir) throws IOException {
+		String job = String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID());
+		Path tmp = ready.resolve("." + job);
+		Files.write(tmp, (src + "\n" + outDir + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, ready.resolve(job), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Takes jobs from the queue and converts them with <code>scheduler</code>,
+	 * at most <code>maxInFlight</code> at a time, until no job is ready or
+	 * leased anymore.
+	 *
+	 * @return number of failed conversions
+	 */
+	public int work(BatchScheduler scheduler, int maxInFlight) throws IOException, InterruptedException {
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		long renewMillis = Math.max(leaseMillis / 3, 1);
+		renewer.scheduleWithFixedDelay(this::renewAll, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+		int taken = 0;
+		for (;;) {
+			inFlight.acquire();
+			Job job = lease();
+			if (job == null) {
+				inFlight.release();
+				if (!leases.isEmpty() || hasLeases()) {
+					// wait for own conversions or for foreign leases to expire
+					Thread.sleep(Math.min(renewMillis, 1000));
+					continue;
+				}
+				break;
+			}
+			taken++;
+			convert(scheduler, job, inFlight);
+		}
+		int failures = scheduler.awaitCompletion();
+		log.info("Worker {} converted {} jobs, {} failed", worker, taken, failures);
+		return failures;
+	}
+
+	/**
+	 * Converts into a directory of this lease next to the output directory,
+	 * which replaces the output directory only if the lease is still held
+	 * when the conversion completes.
+	 */
+	private void convert(BatchScheduler scheduler, final Job job, final Semaphore inFlight) {
+		final Path work = job.outDir.resolveSibling("." + job.outDir.getFileName() + SEP + UUID.randomUUID());
+		progress.put(job.name, new Progress(work));
+		scheduler.convertFile(job.src.toFile(), work.toFile()).whenComplete((v, e) -> {
+			try {
+				finish(job, e == null ? done : failed, work);
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	/**
+	 * @return a ready job or an expired lease now leased by this worker, or
+	 *         <code>null</code> if there is none
+	 */
+	private Job lease() throws IOException {
+		for (Path path : candidates(ready)) {
+			Job job = tryLease(path, path.getFileName().toString());
+			if (job != null)
+				return job;
+		}
+		long now = System.currentTimeMillis();
+		for (Path path : candidates(leased)) {
+			String name = path.getFileName().toString();
+			int sep = name.lastIndexOf(SEP);
+			if (sep < 0 || now < parseExpiry(name.substring(sep + 1)))
+				continue;
+			String job = name.substring(0, name.indexOf(SEP));
+			Job stolen = tryLease(path, job);
+			if (stolen != null) {
+				log.info("Reclaimed expired lease {}", name);
+				return stolen;
+			}
+		}
+		return null;
+	}
+
+	private static long parseExpiry(String s) {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Lists up to {@link #LEASE_CANDIDATES} visible entries of
+	 * <code>dir</code> in random order, so workers polling at the same time
+	 * mostly try different jobs.
+	 */
+	private static List<Path> candidates(Path dir) throws IOException {
+		List<Path> list = new ArrayList<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path path : entries) {
+				if (path.getFileName().toString().startsWith("."))
+					continue;
+				list.add(path);
+				if (list.size() == LEASE_CANDIDATES)
+					break;
+			}
+		}
+		Collections.shuffle(list);
+		return list;
+	}
+
+	private Job tryLease(Path path, String job) throws IOException {
+		Path lease = leased.resolve(leaseName(job));
+		try {
+			Files.move(path, lease, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// taken by another worker
+			return null;
+		}
+		List<String> lines = Files.readAllLines(lease, StandardCharsets.UTF_8);
+		leases.put(job, lease);
+		if (lines.size() < 2) {
+			log.warn("Invalid job {}", job);
+			finish(new Job(job, null, null), failed);
+			return null;
+		}
+		return new Job(job, path.getFileSystem().getPath(lines.get(0)), path.getFileSystem().getPath(lines.get(1)));
+	}
+
+	private String leaseName(String job) {
+		return job + SEP + worker + SEP + (System.currentTimeMillis() + leaseMillis);
+	}
+
+	private void renewAll() {
+		for (String job : leases.keySet())
+			renew(job);
+	}
+
+	private void renew(String job) {
+		Progress p = progress.get(job);
+		boolean stalled = p != null && p.stalledFor() > leaseMillis;
+		synchronized (leases) {
+			Path lease = leases.get(job);
+			if (lease == null)
+				return;
+			if (stalled) {
+				// let the lease expire, so another worker converts the job
+				log.warn("Conversion of job {} made no progress for {} ms, giving up its lease", job,
+						p.stalledFor());
+				leases.remove(job);
+				return;
+			}
+			Path renewed = leased.resolve(leaseName(job));
+			try {
+				Files.move(lease, renewed, StandardCopyOption.ATOMIC_MOVE);
+				leases.put(job, renewed);
+			} catch (IOException e) {
+				// expired and stolen; the other worker writes the output again
+				log.warn("Lost lease of job {}: {}", job, e.getMessage());
+				leases.remove(job);
+			}
+		}
+	}
+
+	private void finish(Job job, Path dir) {
+		finish(job, dir, null);
+	}
+
+	/**
+	 * @param work
+	 *            output of the conversion, moved to the output directory of
+	 *            the job if it is done and the lease is still held, deleted
+	 *            otherwise
+	 */
+	private void finish(Job job, Path dir, Path work) {
+		progress.remove(job.name);
+		synchronized (leases) {
+			Path lease = leases.remove(job.name);
+			boolean held = lease != null && Files.exists(lease);
+			try {
+				if (work != null)
+					if (held && dir == done)
+						publish(work, job.outDir);
+					else
+						ResumableBatch.deleteRecursively(work);
+			} catch (IOException e) {
+				log.warn("Failed to move output of job {} to {}:", job.name, job.outDir, e);
+				dir = failed;
+			}
+			if (!held) {
+				if (lease != null)
+					log.warn("Lost lease of job {}", job.name);
+				return;
+			}
+			try {
+				Files.move(lease, dir.resolve(job.name), StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException | NoSuchFileException e) {
+				log.warn("Lost lease of job {}: {}", job.name, e.getMessage());
+			} catch (IOException e) {
+				log.warn("Failed to finish job {}:", job.name, e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces <code>outDir</code> by <code>work</code>, and deletes work
+	 * directories of earlier leases of the job left by workers that died.
+	 */
+	private static void publish(Path work, Path outDir) throws IOException {
+		ResumableBatch.deleteRecursively(outDir);
+		Files.createDirectories(outDir.getParent());
+		Files.move(work, outDir, StandardCopyOption.ATOMIC_MOVE);
+		final String prefix = "." + outDir.getFileName() + SEP;
+		// only the UUID may follow, .<name>~<other>~<uuid> is the work of output <name>~<other>
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(outDir.getParent(), path -> {
+			String name = path.getFileName().toString();
+			return name.startsWith(prefix) && WORK_SUFFIX.matcher(name.substring(prefix.length())).matches();
+		})) {
+			for (Path path : stale)
+				ResumableBatch.deleteRecursively(path);
+		}
+	}
+
+	private boolean hasLeases() throws IOException {
+		return !candidates(leased).isEmpty();
+	}
+
+	/**
+	 * Stops renewing leases; leases still held expire and are reclaimed by
+	 * other workers.
+	 */
+	@Override
+	public void close() {
+		renewer.shutdownNow();
+	}
+
+	/**
+	 * Changes of the output of a conversion, the number, size and
+	 * modification time of its files.
+	 */
+	private static final class Progress {
+		final Path work;
+		long state;
+		long changed = System.nanoTime();
+
+		Progress(Path work) {
+			this.work = work;
+		}
+
+		/**
+		 * @return milliseconds since the output last changed
+		 */
+		synchronized long stalledFor() {
+			long now = System.nanoTime();
+			long current = state();
+			if (current != state) {
+				state = current;
+				changed = now;
+			}
+			return TimeUnit.NANOSECONDS.toMillis(now - changed);
+		}
+
+		private long state() {
+			final long[] sum = new long[1];
+			try {
+				Files.walkFileTree(work, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						sum[0] = sum[0] * 31 + attrs.size() * 31 + attrs.lastModifiedTime().toMillis();
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				// not created yet
+			}
+			return sum[0];
+		}
+	}
+
+	private static final class Job {
+		final String name;
+		final Path src;
+		final Path outDir;
+
+		Job(String name, Path src, Path outDir) {
+			this.name = name;
+			this.src = src;
+			this.outDir = outDir;
+		}
+	}
+}
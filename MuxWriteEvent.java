@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.MuxWrite")
+@Label("Mux/Write")
+@Description("One encoded frame handed to the movie multiplexer")
+class MuxWriteEvent extends ConversionEvent {
+}
@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded frames held in direct (off-heap) buffers, bounded by
+ * the total number of cached bytes rather than by the number of entries.
+ * Cached frames do not add to the Java heap the GC has to scan; the budget
+ * must fit into <code>-XX:MaxDirectMemorySize</code>.
+ */
+public class OffHeapFrameCache {
+
+	private final long maxBytes;
+
+	private final LinkedHashMap<Object, ByteBuffer> entries = new LinkedHashMap<Object, ByteBuffer>(64, 0.75f,
+			true);
+
+	private long bytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	public OffHeapFrameCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return read-only view of the cached frame, or <code>null</code>
+	 */
+	public synchronized ByteBuffer get(Object key) {
+		ByteBuffer buffer = entries.get(key);
+		if (buffer == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return buffer.asReadOnlyBuffer();
+	}
+
+	public synchronized boolean contains(Object key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Copies <code>data</code> off-heap, evicting least recently used frames
+	 * until the cache is within its budget again. Frames larger than the
+	 * whole budget are not cached.
+	 *
+	 * @return read-only view of the cached copy
+	 */
+	public ByteBuffer put(Object key, byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+		if (data.length > maxBytes)
+			return buffer.asReadOnlyBuffer();
+		synchronized (this) {
+			ByteBuffer prev = entries.put(key, buffer);
+			if (prev != null)
+				bytes -= prev.capacity();
+			bytes += data.length;
+			for (Iterator<Map.Entry<Object, ByteBuffer>> it = entries.entrySet().iterator(); bytes > maxBytes
+					&& it.hasNext();) {
+				bytes -= it.next().getValue().capacity();
+				it.remove();
+				evictions++;
+			}
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public final long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OffHeapFrameCache[frames=" + entries.size() + ", bytes=" + bytes + "/" + maxBytes + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,244 @@
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+
+/**
+ * Overlay planes stored in Overlay Data (60xx,3000), unpacked once per file
+ * into bitmaps of the image size, one bit per pixel and rows aligned to 64
+ * bit words. The bitmap of all planes active on a frame is composed once for
+ * each distinct combination of overlay frames and cached, so burning the
+ * overlays into a frame costs one pass over the bitmap: words without set
+ * bits are skipped, and 8 bit frames are updated 8 pixels at a time with
+ * <code>(pixels &amp; ~mask) | (value &amp; mask)</code>.
+ *
+ * Frames are selected as the DICOM reader does: overlay frame
+ * <code>frame - (Image Frame Origin - 1)</code>, if it is below Number of
+ * Frames in Overlay. Overlays embedded in unused bits of the Pixel Data are
+ * left to the reader.
+ */
+public final class OverlayBitmaps {
+
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	/** 8 bits of a bitmap word expanded to 8 bytes of 0x00 or 0xFF */
+	private static final long[] EXPAND = new long[256];
+
+	static {
+		for (int m = 0; m < 256; m++)
+			for (int j = 0; j < 8; j++)
+				if ((m & (1 << j)) != 0)
+					EXPAND[m] |= 0xFFL << (j * 8);
+	}
+
+	private final int rows;
+
+	private final int columns;
+
+	private final int wordsPerRow;
+
+	private final int grayscaleValue;
+
+	private final Plane[] planes;
+
+	private final int groupMask;
+
+	private final ConcurrentHashMap<List<Integer>, long[]> composed = new ConcurrentHashMap<List<Integer>, long[]>();
+
+	private static final class Plane {
+		int rows, columns, originRow, originColumn, frames, imageFrameOrigin;
+		byte[] data;
+		boolean bigEndian;
+
+		int overlayFrame(int frame) {
+			int i = frame - imageFrameOrigin;
+			return i >= 0 && i < frames ? i : -1;
+		}
+	}
+
+	private OverlayBitmaps(int rows, int columns, int grayscaleValue, Plane[] planes, int groupMask) {
+		this.rows = rows;
+		this.columns = columns;
+		this.wordsPerRow = (columns + 63) >>> 6;
+		this.grayscaleValue = grayscaleValue;
+		this.planes = planes;
+		this.groupMask = groupMask;
+	}
+
+	/**
+	 * @param activationMask
+	 *            bit <i>i</i> activates overlay group 60xx with xx = 2<i>i</i>
+	 * @param grayscaleValue
+	 *            16 bit value written to overlay pixels, scaled to the sample
+	 *            size of the frame
+	 * @return the active planes stored in Overlay Data, or <code>null</code>
+	 *         if there are none or the image is not monochrome
+	 */
+	public static OverlayBitmaps of(Attributes attrs, int activationMask, int grayscaleValue) throws IOException {
+		if (!attrs.getString(Tag.PhotometricInterpretation, "").startsWith("MONOCHROME"))
+			return null;
+		List<Plane> planes = new ArrayList<Plane>();
+		int groupMask = 0;
+		for (int i = 0; i < 16; i++) {
+			if ((activationMask & (1 << i)) == 0)
+				continue;
+			int gg0000 = i << 17;
+			if (attrs.getInt(Tag.OverlayBitsAllocated | gg0000, 1) != 1)
+				continue;
+			byte[] data = attrs.getBytes(Tag.OverlayData | gg0000);
+			if (data == null)
+				continue;
+			Plane plane = new Plane();
+			plane.rows = attrs.getInt(Tag.OverlayRows | gg0000, 0);
+			plane.columns = attrs.getInt(Tag.OverlayColumns | gg0000, 0);
+			int[] origin = attrs.getInts(Tag.OverlayOrigin | gg0000);
+			plane.originRow = origin != null && origin.length == 2 ? origin[0] - 1 : 0;
+			plane.originColumn = origin != null && origin.length == 2 ? origin[1] - 1 : 0;
+			plane.frames = attrs.getInt(Tag.NumberOfFramesInOverlay | gg0000, 1);
+			plane.imageFrameOrigin = attrs.getInt(Tag.ImageFrameOrigin | gg0000, 1) - 1;
+			plane.data = data;
+			// OW values of big endian data sets have the bytes of each word swapped
+			plane.bigEndian = attrs.bigEndian();
+			planes.add(plane);
+			groupMask |= 1 << i;
+		}
+		if (planes.isEmpty())
+			return null;
+		return new OverlayBitmaps(attrs.getInt(Tag.Rows, 0), attrs.getInt(Tag.Columns, 0), grayscaleValue,
+				planes.toArray(new Plane[planes.size()]), groupMask);
+	}
+
+	/**
+	 * @return activation bits of the overlay groups burnt in by
+	 *         {@link #apply}, to be cleared in the activation mask passed to
+	 *         the reader
+	 */
+	public int getGroupMask() {
+		return groupMask;
+	}
+
+	/**
+	 * Burns the overlays active on <code>frame</code> into the single band
+	 * <code>raster</code> of the rendered frame.
+	 *
+	 * @param frame
+	 *            zero based frame index
+	 */
+	public void apply(WritableRaster raster, int frame) {
+		if (raster.getWidth() != columns || raster.getHeight() != rows || raster.getNumBands() != 1)
+			return;
+		long[] bitmap = bitmap(frame);
+		if (bitmap == null)
+			return;
+		int sampleSize = raster.getSampleModel().getSampleSize(0);
+		int value = (grayscaleValue & 0xffff) >>> Math.max(0, 16 - sampleSize);
+		if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+				&& ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() == 1)
+			applyBytes(raster, bitmap, value);
+		else
+			applySamples(raster, bitmap, value);
+	}
+
+	private void applyBytes(WritableRaster raster, long[] bitmap, int value) {
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+		byte[] data = db.getData();
+		int tx = raster.getSampleModelTranslateX(), ty = raster.getSampleModelTranslateY();
+		long fill = (value & 0xFFL) * 0x0101010101010101L;
+		for (int y = 0; y < rows; y++) {
+			int row = db.getOffset() + sm.getOffset(-tx, y - ty);
+			for (int w = 0, i = y * wordsPerRow; w < wordsPerRow; w++, i++) {
+				long bits = bitmap[i];
+				if (bits == 0)
+					continue;
+				for (int k = 0; k < 64; k += 8) {
+					int m = (int) (bits >>> k) & 0xFF;
+					if (m == 0)
+						continue;
+					int x = (w << 6) + k;
+					if (x + 8 <= columns) {
+						long mask = EXPAND[m];
+						long pixels = (long) LONG.get(data, row + x);
+						LONG.set(data, row + x, (pixels & ~mask) | (fill & mask));
+					} else {
+						for (int j = 0; j < 8 && x + j < columns; j++)
+							if ((m & (1 << j)) != 0)
+								data[row + x + j] = (byte) value;
+					}
+				}
+			}
+		}
+	}
+
+	private void applySamples(WritableRaster raster, long[] bitmap, int value) {
+		int minX = raster.getMinX(), minY = raster.getMinY();
+		for (int y = 0; y < rows; y++)
+			for (int w = 0, i = y * wordsPerRow; w < wordsPerRow; w++, i++)
+				for (long bits = bitmap[i]; bits != 0; bits &= bits - 1)
+					raster.setSample(minX + (w << 6) + Long.numberOfTrailingZeros(bits), minY + y, 0, value);
+	}
+
+	/**
+	 * @return the composed bitmap of the planes active on <code>frame</code>,
+	 *         or <code>null</code> if none is
+	 */
+	private long[] bitmap(int frame) {
+		Integer[] key = new Integer[planes.length];
+		boolean any = false;
+		for (int i = 0; i < planes.length; i++) {
+			key[i] = planes[i].overlayFrame(frame);
+			any |= key[i] >= 0;
+		}
+		if (!any)
+			return null;
+		List<Integer> k = Arrays.asList(key);
+		long[] bitmap = composed.get(k);
+		if (bitmap == null) {
+			bitmap = compose(key);
+			long[] prev = composed.putIfAbsent(k, bitmap);
+			if (prev != null)
+				bitmap = prev;
+		}
+		return bitmap;
+	}
+
+	private long[] compose(Integer[] overlayFrames) {
+		long[] bitmap = new long[rows * wordsPerRow];
+		for (int i = 0; i < planes.length; i++)
+			if (overlayFrames[i] >= 0)
+				pack(planes[i], overlayFrames[i], bitmap);
+		return bitmap;
+	}
+
+	/** ORs the bits of one overlay frame, clipped to the image, into <code>bitmap</code> */
+	private void pack(Plane plane, int overlayFrame, long[] bitmap) {
+		long base = (long) overlayFrame * plane.rows * plane.columns;
+		byte[] data = plane.data;
+		int swap = plane.bigEndian ? 1 : 0;
+		for (int r = 0; r < plane.rows; r++) {
+			int y = plane.originRow + r;
+			if (y < 0 || y >= rows)
+				continue;
+			long bit = base + (long) r * plane.columns;
+			for (int c = 0; c < plane.columns; c++, bit++) {
+				int x = plane.originColumn + c;
+				if (x < 0 || x >= columns)
+					continue;
+				int index = (int) (bit >>> 3) ^ swap;
+				if (index < data.length && (data[index] & (1 << (bit & 7))) != 0)
+					bitmap[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized <code>byte[]</code> rasters, so frame loops do not
+ * allocate one raster per frame. The pool never holds more than
+ * <code>maxPooled</code> idle buffers.
+ */
+public class RasterPool {
+
+	private final int size;
+
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public RasterPool(int size, int maxPooled) {
+		this.size = size;
+		this.maxPooled = maxPooled;
+	}
+
+	public final int getSize() {
+		return size;
+	}
+
+	public byte[] acquire() {
+		byte[] b = free.poll();
+		if (b == null)
+			return new byte[size];
+		pooled.decrementAndGet();
+		return b;
+	}
+
+	public void release(byte[] b) {
+		if (b.length != size || pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.offer(b);
+	}
+}
@@ -0,0 +1,311 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch run that survives being killed. The sources are listed in a manifest,
+ * one path per line, optionally followed by a tab and the output directory
+ * relative to the destination; without it the absolute source path is
+ * mirrored below the destination. The line numbers of converted sources are
+ * appended to <code>&lt;manifest&gt;.journal</code>. A restarted run reads
+ * the journal into a bit set, streams the manifest again and converts only
+ * the lines not marked done, after deleting whatever a previous attempt left
+ * in their output directories. Neither the manifest nor the journal is held
+ * in memory, so manifests of tens of millions of paths need a few MB of heap.
+ *
+ * The journal is forced to disk at most once per second; records lost in a
+ * crash only cause those sources to be converted once more.
+ */
+public class ResumableBatch implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(ResumableBatch.class);
+
+	private static final long FORCE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final BatchScheduler scheduler;
+
+	private final File manifest;
+
+	private final Path dest;
+
+	private final Semaphore inFlight;
+
+	private final FileChannel journal;
+
+	private long lastForce = System.nanoTime();
+
+	private int failed;
+
+	public ResumableBatch(BatchScheduler scheduler, File manifest, File dest, int maxInFlight) throws IOException {
+		this.scheduler = scheduler;
+		this.manifest = manifest;
+		this.dest = dest.toPath().toAbsolutePath();
+		this.inFlight = new Semaphore(maxInFlight);
+		Path journalPath = journalFile(manifest).toPath();
+		try (FileChannel ch = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// a record torn by a crash is dropped, not completed by the next one
+			ch.truncate(lastRecordEnd(ch));
+		}
+		this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return the length of the journal up to its last newline
+	 */
+	private static long lastRecordEnd(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		for (long end = ch.size(); end > 0;) {
+			long start = Math.max(0, end - buf.capacity());
+			buf.clear().limit((int) (end - start));
+			while (buf.hasRemaining())
+				if (ch.read(buf, start + buf.position()) < 0)
+					throw new IOException("Journal truncated while reading");
+			for (int i = (int) (end - start) - 1; i >= 0; i--)
+				if (buf.get(i) == '\n')
+					return start + i + 1;
+			end = start;
+		}
+		return 0;
+	}
+
+	static File journalFile(File manifest) {
+		return new File(manifest.getPath() + ".journal");
+	}
+
+	/**
+	 * Writes the files below <code>srcs</code> to <code>manifest</code>,
+	 * walking the directories without collecting them in memory. The output
+	 * directories are laid out as with {@link BatchScheduler#submit}, unless
+	 * sources of the same name would share output directories; then the
+	 * absolute source paths are mirrored below the destination. The manifest
+	 * appears under its name only when complete.
+	 */
+	public static void writeManifest(List<File> srcs, File manifest) throws IOException {
+		final boolean mirror = layoutCollides(srcs);
+		if (mirror)
+			log.info("Sources of the same name in {}, mirroring absolute paths below the destination", srcs);
+		Path tmp = new File(manifest.getPath() + ".part").toPath();
+		final BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+		try {
+			for (File src : srcs) {
+				final Path root = src.toPath().toAbsolutePath();
+				final boolean dir = Files.isDirectory(root);
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isRegularFile()) {
+							out.write(file.toString());
+							if (!mirror) {
+								out.write('\t');
+								out.write((dir ? root.relativize(file) : file.getFileName()).toString());
+							}
+							out.newLine();
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp, manifest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns <code>true</code> if two of <code>srcs</code> would write
+	 * into the same output directory with the layout of
+	 * {@link BatchScheduler#submit}, which names the output of a file source
+	 * and of each entry of a directory source after it. Outputs are deleted
+	 * before a source is converted, so such a collision may delete finished
+	 * output of another source. Only the top level entries are compared, on
+	 * the file system, so nothing is collected in memory.
+	 */
+	static boolean layoutCollides(List<File> srcs) throws IOException {
+		List<Path> roots = new ArrayList<Path>();
+		for (File src : srcs) {
+			Path root = src.toPath().toAbsolutePath();
+			if (Files.isDirectory(root)) {
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+					for (Path entry : entries)
+						if (collides(roots, entry.getFileName()))
+							return true;
+				}
+			} else if (collides(roots, root.getFileName())) {
+				return true;
+			}
+			roots.add(root);
+		}
+		return false;
+	}
+
+	private static boolean collides(List<Path> roots, Path name) {
+		for (Path root : roots)
+			if (Files.isDirectory(root) ? Files.exists(root.resolve(name)) : name.equals(root.getFileName()))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Converts all sources of the manifest which are not marked done in the
+	 * journal, and waits for their completion.
+	 *
+	 * @return number of failed conversions
+	 */
+	public int run() throws IOException, InterruptedException {
+		BitSet done = readJournal();
+		int skipped = 0, scheduled = 0;
+		BufferedReader in = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line;
+			for (int lineNumber = 0; (line = in.readLine()) != null; lineNumber++) {
+				if (line.isEmpty())
+					continue;
+				if (done.get(lineNumber)) {
+					skipped++;
+					continue;
+				}
+				inFlight.acquire();
+				int tab = line.indexOf('\t');
+				if (tab < 0)
+					schedule(lineNumber, new File(line), mirror(dest, new File(line).toPath()).toFile());
+				else
+					schedule(lineNumber, new File(line.substring(0, tab)),
+							dest.resolve(line.substring(tab + 1)).toFile());
+				scheduled++;
+			}
+		} finally {
+			in.close();
+		}
+		scheduler.awaitCompletion();
+		synchronized (this) {
+			log.info("{}: {} sources converted before, {} scheduled, {} failed", manifest, skipped, scheduled,
+					failed);
+			return failed;
+		}
+	}
+
+	private BitSet readJournal() throws IOException {
+		BitSet done = new BitSet();
+		File file = journalFile(manifest);
+		if (!file.exists())
+			return done;
+		BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line;
+			// the journal was truncated to its last complete record on open
+			while ((line = in.readLine()) != null) {
+				try {
+					done.set(Integer.parseInt(line));
+				} catch (NumberFormatException e) {
+					log.debug("Skip invalid journal record: {}", line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return done;
+	}
+
+	/**
+	 * @return the absolute source path below the destination directory
+	 */
+	static Path mirror(Path dest, Path src) {
+		Path path = src.toAbsolutePath();
+		return dest.resolve(path.getRoot().relativize(path).toString());
+	}
+
+	private void schedule(final int lineNumber, File src, File outDir) throws IOException {
+		try {
+			deleteRecursively(outDir.toPath());
+		} catch (IOException e) {
+			inFlight.release();
+			throw e;
+		}
+		scheduler.convertFile(src, outDir).whenComplete((v, e) -> {
+			try {
+				if (e == null)
+					recordDone(lineNumber);
+				else
+					synchronized (this) {
+						failed++;
+					}
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	/** removes the partial output of a previous attempt */
+	static void deleteRecursively(Path dir) throws IOException {
+		if (!Files.exists(dir))
+			return;
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+				if (exc != null)
+					throw exc;
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				if (exc instanceof NoSuchFileException)
+					return FileVisitResult.CONTINUE;
+				throw exc;
+			}
+		});
+	}
+
+	private synchronized void recordDone(int lineNumber) {
+		try {
+			journal.write(ByteBuffer.wrap((lineNumber + "\n").getBytes(StandardCharsets.US_ASCII)));
+			long now = System.nanoTime();
+			if (now - lastForce >= FORCE_INTERVAL) {
+				journal.force(false);
+				lastForce = now;
+			}
+		} catch (IOException e) {
+			log.warn("Failed to journal line {} of {}:", lineNumber + 1, manifest, e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			journal.force(false);
+		} finally {
+			journal.close();
+		}
+	}
+}
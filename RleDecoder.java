@@ -0,0 +1,243 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+
+/**
+ * Decoder for 8 bit RLE Lossless frames (DICOM PS3.5 Annex G), working on
+ * the frame bytes located by {@link ItemParser} instead of the ImageIO DICOM
+ * reader. Each frame is a single fragment whose 64 byte RLE header gives the
+ * offsets of the byte segments, one per sample. The segments are independent,
+ * so they are decoded in parallel, each one straight into its position of the
+ * pixel interleaved raster. Rasters are taken from a {@link RasterPool} and go
+ * back to it on {@link #release}.
+ */
+public class RleDecoder implements FrameDecoder {
+
+	private final FragmentIndex index;
+
+	private final int rows;
+
+	private final int columns;
+
+	private final int samples;
+
+	private final ColorModel colorModel;
+
+	private final RasterPool pool;
+
+	public RleDecoder(FragmentIndex index) throws IOException {
+		Attributes attrs = index.getHeader().getAttributes();
+		this.index = index;
+		this.rows = attrs.getInt(Tag.Rows, 0);
+		this.columns = attrs.getInt(Tag.Columns, 0);
+		this.samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+		this.colorModel = samples == 3 ? new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+				false, false, ColorModel.OPAQUE, DataBuffer.TYPE_BYTE) : paletteColorModel(attrs);
+		this.pool = new RasterPool(rows * columns * samples, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	public static RleDecoder open(File file) throws IOException {
+		FragmentIndex index = FragmentIndex.open(file);
+		try {
+			return new RleDecoder(index);
+		} catch (IOException e) {
+			index.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> for RLE Lossless images with 8 bit RGB or
+	 * PALETTE COLOR pixels, the ones this decoder renders exactly like the
+	 * ImageIO DICOM reader.
+	 */
+	public static boolean supports(DicomHeader header) {
+		Attributes attrs = header.getAttributes();
+		if (!UID.RLELossless.equals(header.getTransferSyntax()) || attrs.getInt(Tag.BitsAllocated, 0) != 8)
+			return false;
+		String pmi = attrs.getString(Tag.PhotometricInterpretation, "");
+		int samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+		return samples == 3 && "RGB".equals(pmi)
+				|| samples == 1 && "PALETTE COLOR".equals(pmi)
+						&& attrs.containsValue(Tag.RedPaletteColorLookupTableData);
+	}
+
+	@Override
+	public BufferedImage decode(int frame) throws IOException {
+		long[] offsetAndLength = index.getFrameOffsetAndLength(frame);
+		byte[] src = new byte[(int) offsetAndLength[1]];
+		index.readFully(offsetAndLength[0], src, 0, src.length);
+		byte[] dst = pool.acquire();
+		try {
+			decode(src, dst);
+		} catch (IOException e) {
+			pool.release(dst);
+			throw e;
+		}
+		DataBufferByte db = new DataBufferByte(dst, dst.length);
+		WritableRaster raster = samples == 3
+				? Raster.createInterleavedRaster(db, columns, rows, columns * 3, 3, new int[] { 0, 1, 2 }, null)
+				: Raster.createInterleavedRaster(db, columns, rows, columns, 1, new int[] { 0 }, null);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	@Override
+	public void release(BufferedImage bi) {
+		DataBuffer db = bi.getRaster().getDataBuffer();
+		if (db instanceof DataBufferByte)
+			pool.release(((DataBufferByte) db).getData());
+	}
+
+	@Override
+	public void close() throws IOException {
+		index.close();
+	}
+
+	/**
+	 * Decodes one RLE frame into the pixel interleaved raster
+	 * <code>dst</code>, decoding the segments in parallel.
+	 */
+	void decode(byte[] src, byte[] dst) throws IOException {
+		if (src.length < 64)
+			throw new IOException("RLE frame too short: " + src.length);
+		int numSegments = readInt(src, 0);
+		if (numSegments != samples)
+			throw new IOException("Number of RLE segments " + numSegments + " does not match Samples per Pixel "
+					+ samples);
+		int pixels = rows * columns;
+		if (numSegments == 1) {
+			int start = readInt(src, 4);
+			if (start < 64 || start > src.length)
+				throw new IOException("Invalid offset of RLE segment #1: " + start);
+			checkDecoded(1, decodeSegment(src, start, src.length, dst, 0, 1), pixels);
+			return;
+		}
+		List<SegmentTask> tasks = new ArrayList<SegmentTask>(numSegments);
+		for (int i = 0; i < numSegments; i++) {
+			int start = readInt(src, 4 + i * 4);
+			int end = i + 1 < numSegments ? readInt(src, 8 + i * 4) : src.length;
+			if (start < 64 || end > src.length || start > end)
+				throw new IOException("Invalid offset of RLE segment #" + (i + 1) + ": " + start);
+			tasks.add(new SegmentTask(src, start, end, dst, i, numSegments));
+		}
+		ForkJoinTask.invokeAll(tasks);
+		for (int i = 0; i < numSegments; i++)
+			checkDecoded(i + 1, tasks.get(i).decoded, pixels);
+	}
+
+	/**
+	 * Rasters come from the pool uncleared, so a short segment would leave
+	 * samples of an earlier frame in place.
+	 */
+	private static void checkDecoded(int segment, int decoded, int pixels) throws IOException {
+		if (decoded < pixels)
+			throw new IOException("RLE segment #" + segment + " truncated: " + decoded + " of " + pixels
+					+ " samples");
+	}
+
+	/**
+	 * PackBits decoding of one segment, writing every <code>stride</code>-th
+	 * byte of <code>dst</code> starting at <code>dstPos</code>.
+	 *
+	 * @return the number of samples written
+	 */
+	static int decodeSegment(byte[] src, int srcPos, int srcEnd, byte[] dst, int dstPos, int stride) {
+		int dstStart = dstPos;
+		int dstEnd = dst.length;
+		while (srcPos < srcEnd && dstPos < dstEnd) {
+			int n = src[srcPos++];
+			if (n >= 0) {
+				int end = Math.min(srcPos + n + 1, srcEnd);
+				while (srcPos < end && dstPos < dstEnd) {
+					dst[dstPos] = src[srcPos++];
+					dstPos += stride;
+				}
+			} else if (n != -128 && srcPos < srcEnd) {
+				byte b = src[srcPos++];
+				for (int i = 1 - n; i > 0 && dstPos < dstEnd; i--) {
+					dst[dstPos] = b;
+					dstPos += stride;
+				}
+			}
+		}
+		return (dstPos - dstStart) / stride;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+	}
+
+	private static IndexColorModel paletteColorModel(Attributes attrs) throws IOException {
+		byte[] r = lut(attrs, Tag.RedPaletteColorLookupTableDescriptor, Tag.RedPaletteColorLookupTableData);
+		byte[] g = lut(attrs, Tag.GreenPaletteColorLookupTableDescriptor, Tag.GreenPaletteColorLookupTableData);
+		byte[] b = lut(attrs, Tag.BluePaletteColorLookupTableDescriptor, Tag.BluePaletteColorLookupTableData);
+		return new IndexColorModel(8, 256, r, g, b);
+	}
+
+	/**
+	 * Expands one palette color LUT to 256 8 bit entries indexed by the
+	 * stored pixel value, clamping values outside the mapped range.
+	 */
+	private static byte[] lut(Attributes attrs, int descTag, int dataTag) throws IOException {
+		int[] desc = attrs.getInts(descTag);
+		byte[] data = attrs.getBytes(dataTag);
+		if (desc == null || desc.length != 3 || data == null)
+			throw new IOException("Missing or invalid Palette Color Lookup Table");
+		int len = desc[0] == 0 ? 0x10000 : desc[0];
+		int first = desc[1];
+		// 16 bit entries: use the high byte; 8 bit entries may still be
+		// stored in 16 bit words, then the value is in the low byte
+		boolean words = data.length >= len * 2;
+		int msb = attrs.bigEndian() ? 0 : 1;
+		int pos = desc[2] == 16 ? msb : 1 - msb;
+		byte[] lut = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			int entry = Math.min(Math.max(i - first, 0), len - 1);
+			lut[i] = words ? data[entry * 2 + pos] : data[entry];
+		}
+		return lut;
+	}
+
+	private static final class SegmentTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final byte[] src;
+		final int start;
+		final int end;
+		final byte[] dst;
+		final int dstPos;
+		final int stride;
+		int decoded;
+
+		SegmentTask(byte[] src, int start, int end, byte[] dst, int dstPos, int stride) {
+			this.src = src;
+			this.start = start;
+			this.end = end;
+			this.dst = dst;
+			this.dstPos = dstPos;
+			this.stride = stride;
+		}
+
+		@Override
+		protected void compute() {
+			decoded = decodeSegment(src, start, end, dst, dstPos, stride);
+		}
+	}
+}
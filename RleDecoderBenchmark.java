@@ -0,0 +1,79 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Compares decoding all frames of a multi-frame RLE Lossless file with the
+ * serial ImageIO DICOM reader against the parallel {@link RleDecoder}.
+ *
+ * <pre>
+ * java RleDecoderBenchmark US-PAL-8-10x-echo.dcm [iterations]
+ * </pre>
+ */
+public class RleDecoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java RleDecoderBenchmark <rle-file> [iterations]");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		DicomHeader header = DicomHeader.read(file);
+		if (!RleDecoder.supports(header)) {
+			System.err.println(file + ": not an 8 bit RGB or PALETTE COLOR RLE Lossless image");
+			System.exit(2);
+		}
+		int frames = header.getNumberOfFrames();
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("DICOM").next();
+		long imageio = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			ImageInputStream iis = ImageIO.createImageInputStream(file);
+			try {
+				reader.setInput(iis);
+				for (int i = 0; i < frames; i++)
+					reader.read(i);
+			} finally {
+				iis.close();
+			}
+			imageio = Math.min(imageio, System.nanoTime() - start);
+		}
+
+		long rle = Long.MAX_VALUE;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			final RleDecoder decoder = RleDecoder.open(file);
+			try {
+				List<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>(frames);
+				for (int i = 0; i < frames; i++) {
+					final int frame = i;
+					decoded.add(ForkJoinPool.commonPool().submit(new Callable<BufferedImage>() {
+						@Override
+						public BufferedImage call() throws Exception {
+							return decoder.decode(frame);
+						}
+					}));
+				}
+				for (Future<BufferedImage> f : decoded)
+					decoder.release(f.get());
+			} finally {
+				decoder.close();
+			}
+			rle = Math.min(rle, System.nanoTime() - start);
+		}
+
+		System.out.println(file + ": " + frames + " frames, best of " + iterations + " runs");
+		System.out.println("ImageIO DICOM reader: " + imageio / 1000 + " us (" + imageio / frames / 1000 + " us/frame)");
+		System.out.println("RleDecoder:           " + rle / 1000 + " us (" + rle / frames / 1000 + " us/frame)");
+	}
+}
@@ -0,0 +1,272 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.media.MediaLocator;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concatenates the cine instances of a series into one movie in a single
+ * pass. The instances are ordered by Instance Number, then Acquisition Time,
+ * from header-only reads. Their frames are decoded and encoded on one pool, a
+ * bounded number ahead of the muxer, and are handed to
+ * {@link JpegImagesToMovie} in memory, so no frame files are written.
+ *
+ * Frame selections like <code>--frames</code> apply to each instance. The
+ * first frame of each instance is listed in a <code>.segments</code>
+ * sidecar next to the movie: frame index, start time in seconds, number of
+ * frames, Instance Number, SOP Instance UID and source file, tab separated.
+ */
+public class SeriesMovie implements JpegImagesToMovie.FrameSource {
+
+	private static final Logger log = LoggerFactory.getLogger(SeriesMovie.class);
+
+	private static final Comparator<Instance> ORDER = new Comparator<Instance>() {
+		@Override
+		public int compare(Instance a, Instance b) {
+			int c = Integer.compare(a.instanceNumber, b.instanceNumber);
+			if (c == 0)
+				c = a.acquisitionTime.compareTo(b.acquisitionTime);
+			return c != 0 ? c : a.header.getFile().compareTo(b.header.getFile());
+		}
+	};
+
+	private final Dcm2Jpg converter;
+
+	private final List<Instance> instances = new ArrayList<Instance>();
+
+	private final int lookahead = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final ArrayDeque<Future<byte[]>> encoded = new ArrayDeque<Future<byte[]>>();
+
+	private int submitInstance, submitFrame;
+
+	private int takeInstance, takeFrame;
+
+	private IOException failure;
+
+	/**
+	 * Reads the headers of <code>files</code>, or of the files below them if
+	 * they are directories, and orders them. Files which are not DICOM or
+	 * whose frame size, Samples per Pixel or Photometric Interpretation
+	 * differs from the first instance are skipped.
+	 */
+	public SeriesMovie(Dcm2Jpg converter, List<File> files) throws IOException {
+		this.converter = converter;
+		List<File> all = new ArrayList<File>();
+		for (File file : files)
+			listFiles(file, all);
+		for (File file : all) {
+			try {
+				Instance inst = new Instance(DicomHeader.read(file), converter);
+				if (inst.frames.length > 0)
+					instances.add(inst);
+			} catch (IOException e) {
+				log.warn("Skip {}: {}", file, e.getMessage());
+			}
+		}
+		if (instances.isEmpty())
+			throw new IOException("No DICOM instances in " + files);
+		Collections.sort(instances, ORDER);
+		Instance first = instances.get(0);
+		for (int i = instances.size() - 1; i > 0; i--) {
+			Instance inst = instances.get(i);
+			if (inst.rows != first.rows || inst.columns != first.columns || inst.samples != first.samples
+					|| !inst.photometric.equals(first.photometric)) {
+				log.warn("Skip {}: {}x{} {} frames do not match {}x{} {} of {}", inst.header.getFile(),
+						inst.columns, inst.rows, inst.photometric, first.columns, first.rows, first.photometric,
+						first.header.getFile());
+				instances.remove(i);
+			}
+		}
+	}
+
+	private static void listFiles(File file, List<File> result) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null)
+				for (File child : children)
+					listFiles(child, result);
+		} else {
+			result.add(file);
+		}
+	}
+
+	/**
+	 * @return movie frame rate of the first instance; {@link #write}
+	 *         resamples instances of other frame rates to the rate of the
+	 *         movie
+	 */
+	public float getFrameRate() {
+		return converter.movieFrameRate(instances.get(0).header);
+	}
+
+	/**
+	 * Writes all frames of the series to <code>movie</code> and the segment
+	 * boundaries to <code>&lt;movie&gt;.segments</code>.
+	 */
+	public void write(File movie, int frameRate) throws IOException {
+		Instance first = instances.get(0);
+		int rate = Math.max(frameRate, 1);
+		// each instance plays at its own speed, even if its frame rate differs
+		for (Instance inst : instances)
+			inst.frames = converter.selectFrames(inst.header, rate);
+		MediaLocator ml = JpegImagesToMovie.createMediaLocator(movie.getPath());
+		boolean success;
+		try {
+			success = new JpegImagesToMovie().doIt(first.columns, first.rows, rate, this, ml);
+		} finally {
+			for (Future<byte[]> f : encoded)
+				f.cancel(true);
+			encoded.clear();
+			for (Instance inst : instances)
+				inst.closeDecoder();
+		}
+		if (failure != null) {
+			Files.deleteIfExists(movie.toPath());
+			throw failure;
+		}
+		if (!success)
+			throw new IOException("Failed to write " + movie);
+		writeSegments(new File(movie.getPath() + ".segments"), rate);
+	}
+
+	private void writeSegments(File file, int frameRate) throws IOException {
+		PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8));
+		try {
+			int frame = 0;
+			for (Instance inst : instances) {
+				out.println(String.format(Locale.ROOT, "%d\t%.3f\t%d\t%d\t%s\t%s", frame, (float) frame / frameRate,
+						inst.frames.length, inst.instanceNumber, inst.sopInstanceUID, inst.header.getFile()));
+				frame += inst.frames.length;
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Failed to write " + file);
+	}
+
+	/**
+	 * Called by the muxer; a failure ends the movie early and is rethrown by
+	 * {@link #write}.
+	 */
+	@Override
+	public byte[] nextFrame() throws IOException {
+		if (failure != null)
+			return null;
+		try {
+			submit();
+			Future<byte[]> f = encoded.poll();
+			if (f == null)
+				return null;
+			byte[] data = get(f);
+			Instance inst = instances.get(takeInstance);
+			if (++takeFrame == inst.frames.length) {
+				// all frames of the instance are taken, so all are done
+				inst.closeDecoder();
+				takeInstance++;
+				takeFrame = 0;
+			}
+			return data;
+		} catch (IOException e) {
+			failure = e;
+			return null;
+		}
+	}
+
+	private void submit() throws IOException {
+		while (encoded.size() < lookahead && submitInstance < instances.size()) {
+			Instance inst = instances.get(submitInstance);
+			if (inst.decoder == null)
+				inst.decoder = converter.openDecoder(inst.header);
+			encoded.add(ForkJoinPool.commonPool().submit(encodeTask(inst, inst.frames[submitFrame])));
+			if (++submitFrame == inst.frames.length) {
+				submitInstance++;
+				submitFrame = 0;
+			}
+		}
+	}
+
+	private Callable<byte[]> encodeTask(final Instance inst, final int frame) {
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				BufferedImage bi = converter.decodeFrame(inst.decoder, inst.header, frame);
+				try {
+					return converter.encodeFrame(bi, inst.header, frame);
+				} finally {
+					inst.decoder.release(bi);
+				}
+			}
+		};
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private static final class Instance {
+
+		final DicomHeader header;
+		/** selected frames, resampled to the movie frame rate by write */
+		int[] frames;
+		final int rows;
+		final int columns;
+		final int samples;
+		final String photometric;
+		final int instanceNumber;
+		final String acquisitionTime;
+		final String sopInstanceUID;
+		FrameDecoder decoder;
+
+		Instance(DicomHeader header, Dcm2Jpg converter) {
+			Attributes attrs = header.getAttributes();
+			this.header = header;
+			this.frames = converter.selectFrames(header);
+			this.rows = attrs.getInt(Tag.Rows, 0);
+			this.columns = attrs.getInt(Tag.Columns, 0);
+			this.samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+			this.photometric = attrs.getString(Tag.PhotometricInterpretation, "");
+			this.instanceNumber = attrs.getInt(Tag.InstanceNumber, Integer.MAX_VALUE);
+			this.acquisitionTime = attrs.getString(Tag.AcquisitionDateTime,
+					attrs.getString(Tag.AcquisitionTime, ""));
+			this.sopInstanceUID = attrs.getString(Tag.SOPInstanceUID, "");
+		}
+
+		void closeDecoder() {
+			if (decoder == null)
+				return;
+			try {
+				decoder.close();
+			} catch (IOException e) {
+				log.debug("Failed to close {}:", header.getFile(), e);
+			}
+			decoder = null;
+		}
+	}
+}
@@ -17,40 +17,54 @@ public class StopTagInputHandler implements DicomInputHandler {
 
 	private final long stopTag;
 
+	private final String source;
+
+	private HeaderParseEvent event;
+
 	public StopTagInputHandler(int stopTag) {
+		this(stopTag, null);
+	}
+
+	/**
+	 * @param source
+	 *            name of the parsed file, reported in the header parse event
+	 */
+	public StopTagInputHandler(int stopTag, String source) {
 		this.stopTag = stopTag & 0xffffffffL;
+		this.source = source;
 	}
 
 	@Override
-	public void endDataset(DicomInputStream arg0) throws IOException {
-		// TODO Auto-generated method stub
-
+	public void endDataset(DicomInputStream in) throws IOException {
+		in.endDataset(in);
+		if (event != null) {
+			event.record(source, -1, in.getTransferSyntax(), in.getPosition());
+			event = null;
+		}
 	}
 
 	@Override
 	public void readValue(DicomInputStream in, Attributes arg1) throws IOException {
-		// TODO Auto-generated method stub
 		if ((in.tag() & 0xffffffffL) >= stopTag && in.level() == 0)
 			return;
 		in.readValue(in, arg1);
 	}
 
 	@Override
-	public void readValue(DicomInputStream arg0, Sequence arg1) throws IOException {
-		// TODO Auto-generated method stub
-
+	public void readValue(DicomInputStream in, Sequence arg1) throws IOException {
+		in.readValue(in, arg1);
 	}
 
 	@Override
-	public void readValue(DicomInputStream arg0, Fragments arg1) throws IOException {
-		// TODO Auto-generated method stub
-
+	public void readValue(DicomInputStream in, Fragments arg1) throws IOException {
+		in.readValue(in, arg1);
 	}
 
 	@Override
-	public void startDataset(DicomInputStream arg0) throws IOException {
-		// TODO Auto-generated method stub
-
+	public void startDataset(DicomInputStream in) throws IOException {
+		event = new HeaderParseEvent();
+		event.begin();
+		in.startDataset(in);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forward-only counterpart of {@link ItemParser} for input that cannot seek,
+ * like pipes and sockets. It reads the Pixel Data following the header from
+ * the {@link DicomInputStream} and returns one frame at a time, as soon as
+ * its last fragment has been read, so frames can be decoded while the
+ * following ones are still being received.
+ *
+ * Frame boundaries of encapsulated Pixel Data are found as by
+ * {@link ItemParser}: from the Basic Offset Table if present, one fragment per
+ * frame for RLE, and from the SOI or SOC marker starting a fragment for JPEG
+ * and JPEG 2000. A JPEG frame ends with its EOI marker, so it is returned
+ * without waiting for the next fragment.
+ */
+public class StreamingItemParser {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamingItemParser.class);
+
+	private final DicomInputStream dis;
+
+	private final DicomHeader header;
+
+	private final int numberOfFrames;
+
+	private final boolean encapsulated;
+
+	private final boolean rle;
+
+	private final boolean jpeg;
+
+	/** bytes of a native frame */
+	private final int frameLength;
+
+	private long[] basicOffsetTable;
+
+	/** bytes of items read after the offset table, including item headers */
+	private long pos;
+
+	/** index of the frame returned next */
+	private int frame;
+
+	/** first fragment of the next frame, read while looking for the end of a frame */
+	private byte[] carry;
+
+	private boolean carryEndsFrame;
+
+	private boolean ended;
+
+	/**
+	 * @param dis
+	 *            positioned after the header of the Pixel Data element, as
+	 *            left by <code>readDataset(-1, Tag.PixelData)</code>
+	 */
+	public StreamingItemParser(DicomInputStream dis, DicomHeader header) throws IOException {
+		Attributes attrs = header.getAttributes();
+		String tsuid = header.getTransferSyntax();
+		this.dis = dis;
+		this.header = header;
+		this.numberOfFrames = header.getNumberOfFrames();
+		this.encapsulated = dis.length() == -1;
+		this.rle = UID.RLELossless.equals(tsuid);
+		this.jpeg = !rle && encapsulated && ItemParser.JPEG_TS.contains(tsuid);
+		long bits = Math.multiplyFull(attrs.getInt(Tag.Rows, 0), attrs.getInt(Tag.Columns, 0))
+				* attrs.getInt(Tag.SamplesPerPixel, 1) * attrs.getInt(Tag.BitsAllocated, 8);
+		if (!encapsulated && numberOfFrames > 1 && bits % 8 != 0)
+			throw new IOException("Frames of " + header.getSource() + " are not byte aligned");
+		this.frameLength = (int) ((bits + 7) / 8);
+		if (encapsulated)
+			readOffsetTable();
+	}
+
+	public DicomHeader getHeader() {
+		return header;
+	}
+
+	private void readOffsetTable() throws IOException {
+		byte[] table = readFragment();
+		if (table == null || table.length == 0)
+			return;
+		if (table.length == numberOfFrames * 4) {
+			basicOffsetTable = new long[numberOfFrames];
+			long highWord = 0;
+			for (int i = 0; i < numberOfFrames; i++) {
+				int j = i * 4;
+				basicOffsetTable[i] = highWord | ((table[j] & 0xffL) | (table[j + 1] & 0xffL) << 8
+						| (table[j + 2] & 0xffL) << 16 | (table[j + 3] & 0xffL) << 24);
+				// offsets of more than 4 GB wrap around
+				if (i > 0 && basicOffsetTable[i] < basicOffsetTable[i - 1]) {
+					highWord += 0x100000000L;
+					basicOffsetTable[i] += 0x100000000L;
+				}
+			}
+		} else if (jpeg && startsJPEG(table)) {
+			log.debug("JPEG image is in the offset table sequence slot.");
+			carry = table;
+			carryEndsFrame = endsJPEG(table);
+		} else {
+			log.warn("Skip Basic Offset Table with illegal length: {} for image with {} frames!", table.length,
+					numberOfFrames);
+		}
+	}
+
+	/**
+	 * @return the next fragment, or <code>null</code> after the last one
+	 */
+	private byte[] readFragment() throws IOException {
+		if (ended)
+			return null;
+		if (!dis.readHeader() || dis.tag() != Tag.Item) {
+			if (dis.tag() != Tag.SequenceDelimitationItem)
+				log.warn("{}: Pixel Data ends without sequence delimiter", header.getSource());
+			ended = true;
+			return null;
+		}
+		if (dis.length() < 0)
+			throw new IOException(header.getSource() + ": Pixel Data item of undefined length");
+		byte[] b = new byte[dis.length()];
+		dis.readFully(b);
+		return b;
+	}
+
+	/**
+	 * Reads the next frame. Native frames are returned as stored;
+	 * encapsulated frames with their fragments concatenated.
+	 *
+	 * @return the frame, or <code>null</code> after the last one
+	 */
+	public byte[] nextFrame() throws IOException {
+		if (frame >= numberOfFrames && (!encapsulated || carry == null))
+			return null;
+		if (!encapsulated) {
+			byte[] b = new byte[frameLength];
+			dis.readFully(b);
+			frame++;
+			return b;
+		}
+		ByteArrayOutputStream out = null;
+		boolean complete = false;
+		if (carry != null) {
+			out = new ByteArrayOutputStream(carry.length);
+			out.write(carry, 0, carry.length);
+			complete = carryEndsFrame;
+			carry = null;
+		}
+		while (!complete) {
+			long start = pos;
+			byte[] fragment = readFragment();
+			if (fragment == null)
+				break;
+			pos += 8 + fragment.length;
+			if (out != null && startsFrame(frame + 1, start, fragment)) {
+				carry = fragment;
+				carryEndsFrame = endsFrame(frame + 1, pos, fragment);
+				break;
+			}
+			if (out == null)
+				out = new ByteArrayOutputStream(fragment.length);
+			out.write(fragment, 0, fragment.length);
+			complete = endsFrame(frame, pos, fragment);
+		}
+		if (out == null)
+			return null;
+		frame++;
+		return out.toByteArray();
+	}
+
+	private boolean startsFrame(int f, long start, byte[] fragment) {
+		if (f >= numberOfFrames)
+			return false;
+		if (basicOffsetTable != null)
+			return start == basicOffsetTable[f];
+		return jpeg ? startsJPEG(fragment) : true;
+	}
+
+	private boolean endsFrame(int f, long end, byte[] fragment) {
+		if (basicOffsetTable != null)
+			return f + 1 < numberOfFrames ? end == basicOffsetTable[f + 1] : jpeg && endsJPEG(fragment);
+		if (jpeg)
+			return endsJPEG(fragment);
+		// one fragment per frame, unless all fragments form one frame
+		return rle || numberOfFrames > 1;
+	}
+
+	private static boolean startsJPEG(byte[] b) {
+		return b.length >= 2 && b[0] == (byte) 0xFF && (b[1] == (byte) 0xD8 || b[1] == (byte) 0x4F);
+	}
+
+	/** EOI, or EOC for JPEG 2000, possibly followed by a pad byte */
+	private static boolean endsJPEG(byte[] b) {
+		int n = b.length;
+		if (n >= 3 && b[n - 1] == 0)
+			n--;
+		return n >= 2 && b[n - 2] == (byte) 0xFF && b[n - 1] == (byte) 0xD9;
+	}
+
+	/**
+	 * Returns a DICOM file in memory holding the header and the single
+	 * <code>frame</code>, which the ImageIO DICOM reader renders like the
+	 * frame of the whole file.
+	 */
+	public byte[] toSingleFrameFile(byte[] frame) throws IOException {
+		Attributes attrs = new Attributes(header.getAttributes());
+		attrs.setInt(Tag.NumberOfFrames, VR.IS, 1);
+		String tsuid = header.getTransferSyntax();
+		// the input stream has inflated deflated data sets already
+		if (UID.DeflatedExplicitVRLittleEndian.equals(tsuid))
+			tsuid = UID.ExplicitVRLittleEndian;
+		int length = (frame.length + 1) & ~1;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 4096);
+		DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+		try {
+			dos.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+			if (encapsulated) {
+				dos.writeHeader(Tag.PixelData, VR.OB, -1);
+				dos.writeHeader(Tag.Item, null, 0);
+				dos.writeHeader(Tag.Item, null, length);
+			} else {
+				dos.writeHeader(Tag.PixelData, attrs.getInt(Tag.BitsAllocated, 8) > 8 ? VR.OW : VR.OB, length);
+			}
+			dos.write(frame);
+			if (length > frame.length)
+				dos.write(0);
+			if (encapsulated)
+				dos.writeHeader(Tag.SequenceDelimitationItem, null, 0);
+		} finally {
+			dos.close();
+		}
+		return out.toByteArray();
+	}
+}
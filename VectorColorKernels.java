@@ -0,0 +1,94 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementations of the {@link ColorKernels}. Byte gathers of
+ * pixel interleaved samples are not intrinsified, so the samples are split
+ * into int planes in chunks that stay in L1, and the arithmetic and packing
+ * run on full vectors. Only called if <code>jdk.incubator.vector</code> is
+ * present.
+ */
+final class VectorColorKernels {
+
+	private static final VectorSpecies<Integer> IS = IntVector.SPECIES_PREFERRED;
+
+	private static final VectorSpecies<Float> FS = FloatVector.SPECIES_PREFERRED;
+
+	private static final int CHUNK = 256;
+
+	private static final ThreadLocal<int[][]> PLANES = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[3][CHUNK];
+		}
+	};
+
+	private VectorColorKernels() {
+	}
+
+	static void ybrFullToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+		int[][] planes = PLANES.get();
+		int[] y = planes[0], cb = planes[1], cr = planes[2];
+		for (int i = 0; i < n; i += CHUNK) {
+			int len = Math.min(CHUNK, n - i);
+			for (int k = 0, s = srcOff + 3 * i; k < len; k++, s += 3) {
+				y[k] = src[s] & 0xff;
+				cb[k] = (src[s + 1] & 0xff) - 128;
+				cr[k] = (src[s + 2] & 0xff) - 128;
+			}
+			ybrToIntRgb(y, cb, cr, len, dst, dstOff + i);
+		}
+	}
+
+	static void ybrFull422ToIntRgb(byte[] src, int srcOff, int[] dst, int dstOff, int n) {
+		int[][] planes = PLANES.get();
+		int[] y = planes[0], cb = planes[1], cr = planes[2];
+		for (int i = 0; i < n; i += CHUNK) {
+			int len = Math.min(CHUNK, n - i);
+			for (int k = 0, s = srcOff + 2 * i; k < len; k += 2, s += 4) {
+				y[k] = src[s] & 0xff;
+				y[k + 1] = src[s + 1] & 0xff;
+				cb[k] = cb[k + 1] = (src[s + 2] & 0xff) - 128;
+				cr[k] = cr[k + 1] = (src[s + 3] & 0xff) - 128;
+			}
+			ybrToIntRgb(y, cb, cr, len, dst, dstOff + i);
+		}
+	}
+
+	private static void ybrToIntRgb(int[] y, int[] cb, int[] cr, int len, int[] dst, int dstOff) {
+		int k = 0;
+		for (int upper = IS.loopBound(len); k < upper; k += IS.length()) {
+			IntVector vy = IntVector.fromArray(IS, y, k);
+			IntVector vcb = IntVector.fromArray(IS, cb, k);
+			IntVector vcr = IntVector.fromArray(IS, cr, k);
+			IntVector r = vy.add(vcr.mul(91881).add(32768).lanewise(VectorOperators.ASHR, 16));
+			IntVector g = vy.sub(vcb.mul(22554).add(vcr.mul(46802)).add(32768).lanewise(VectorOperators.ASHR, 16));
+			IntVector b = vy.add(vcb.mul(116130).add(32768).lanewise(VectorOperators.ASHR, 16));
+			r = r.max(0).min(255);
+			g = g.max(0).min(255);
+			b = b.max(0).min(255);
+			r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b).intoArray(dst,
+					dstOff + k);
+		}
+		for (; k < len; k++)
+			dst[dstOff + k] = ColorKernels.ybrToIntRgb(y[k], cb[k], cr[k]);
+	}
+
+	static void rgbToYCbCr(int[] rgb, int rgbOff, int n, float[] y, float[] cb, float[] cr, int off) {
+		int i = 0;
+		for (int upper = IS.loopBound(n); i < upper; i += IS.length()) {
+			IntVector p = IntVector.fromArray(IS, rgb, rgbOff + i);
+			FloatVector r = (FloatVector) p.lanewise(VectorOperators.LSHR, 16).and(0xff)
+					.convertShape(VectorOperators.I2F, FS, 0);
+			FloatVector g = (FloatVector) p.lanewise(VectorOperators.LSHR, 8).and(0xff)
+					.convertShape(VectorOperators.I2F, FS, 0);
+			FloatVector b = (FloatVector) p.and(0xff).convertShape(VectorOperators.I2F, FS, 0);
+			r.mul(0.299f).add(g.mul(0.587f)).add(b.mul(0.114f)).sub(128f).intoArray(y, off + i);
+			b.mul(0.5f).sub(r.mul(0.168736f)).sub(g.mul(0.331264f)).intoArray(cb, off + i);
+			r.mul(0.5f).sub(g.mul(0.418688f)).sub(b.mul(0.081312f)).intoArray(cr, off + i);
+		}
+		ColorKernels.Scalar.rgbToYCbCr(rgb, rgbOff + i, n - i, y, cb, cr, off + i);
+	}
+}
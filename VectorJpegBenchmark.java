@@ -0,0 +1,95 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.dcm4che3.image.BufferedImageUtils;
+
+/**
+ * Compares encoding the frames of a DICOM file with the default JDK JPEG
+ * writer against {@link VectorJpegImageWriter}, at the same quality.
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector VectorJpegBenchmark US-RGB-8-esopecho.dcm [iterations] [quality]
+ * </pre>
+ */
+public class VectorJpegBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java --add-modules jdk.incubator.vector VectorJpegBenchmark <dicom-file> "
+					+ "[iterations] [quality]");
+			System.exit(2);
+		}
+		if (!VectorJpegImageWriterSpi.registerIfSupported()) {
+			System.err.println("Run with --add-modules jdk.incubator.vector");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		float quality = args.length > 2 ? Float.parseFloat(args[2]) : 0.75f;
+
+		BufferedImage[] frames;
+		ImageReader reader = ImageIO.getImageReadersByFormatName("DICOM").next();
+		ImageInputStream iis = ImageIO.createImageInputStream(file);
+		try {
+			reader.setInput(iis);
+			frames = new BufferedImage[reader.getNumImages(true)];
+			for (int i = 0; i < frames.length; i++) {
+				BufferedImage bi = reader.read(i);
+				frames[i] = bi.getColorModel().getNumComponents() == 3 ? BufferedImageUtils.convertToIntRGB(bi) : bi;
+			}
+		} finally {
+			iis.close();
+		}
+
+		ImageWriter jdk = ImageIO.getImageWritersByFormatName("JPEG").next();
+		ImageWriter vector = new VectorJpegImageWriterSpi().createWriterInstance();
+		long[] jdkResult = run(jdk, frames, quality, iterations);
+		long[] vectorResult = run(vector, frames, quality, iterations);
+
+		System.out.println(file + ": " + frames.length + " frames " + frames[0].getWidth() + "x"
+				+ frames[0].getHeight() + ", quality " + quality + ", best of " + iterations + " runs");
+		print(jdk, jdkResult, frames.length);
+		print(vector, vectorResult, frames.length);
+	}
+
+	/**
+	 * @return best time in ns and size in bytes of encoding all frames
+	 */
+	private static long[] run(ImageWriter writer, BufferedImage[] frames, float quality, int iterations)
+			throws Exception {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+		long best = Long.MAX_VALUE;
+		long bytes = 0;
+		for (int n = 0; n < iterations; n++) {
+			long start = System.nanoTime();
+			bytes = 0;
+			for (BufferedImage bi : frames) {
+				out.reset();
+				MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+				writer.setOutput(ios);
+				writer.write(null, new IIOImage(bi, null, null), param);
+				ios.close();
+				bytes += out.size();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return new long[] { best, bytes };
+	}
+
+	private static void print(ImageWriter writer, long[] result, int frames) {
+		System.out.println(writer.getClass().getSimpleName() + ": " + result[0] / 1000 + " us ("
+				+ result[0] / frames / 1000 + " us/frame), " + result[1] + " bytes");
+	}
+}
@@ -0,0 +1,490 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Baseline sequential JPEG encoder (ITU-T T.81) using the
+ * <code>jdk.incubator.vector</code> API for the forward DCT and quantization,
+ * and {@link ColorKernels} for color conversion. Color images are written as
+ * YCbCr 4:2:0, single band images as luma only. The Huffman tables are the
+ * typical tables of Annex K, precomputed once; all buffers live in per-thread
+ * state, so encoding frames of a fixed size does not allocate.
+ *
+ * Requires <code>--add-modules jdk.incubator.vector</code>.
+ */
+final class VectorJpegEncoder {
+
+	/** 8 lanes, one DCT row per vector */
+	private static final VectorSpecies<Float> DCT = FloatVector.SPECIES_256;
+
+	/**
+	 * Returns <code>true</code> if the vectors of a DCT row are native on
+	 * this CPU. Wider vectors are emulated, slower than scalar code, on
+	 * 128 bit SIMD hardware like NEON or SSE only.
+	 */
+	static boolean isNative() {
+		return FloatVector.SPECIES_PREFERRED.vectorBitSize() >= DCT.vectorBitSize();
+	}
+
+	/** natural order index of the k-th coefficient in zig-zag order */
+	static final int[] ZIGZAG = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48,
+			41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58,
+			59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+	private static final int[] LUMINANCE_QT = { 16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55, 14,
+			13, 16, 24, 40, 57, 69, 56, 14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109, 103, 77, 24, 35, 55,
+			64, 81, 104, 113, 92, 49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103, 99 };
+
+	private static final int[] CHROMINANCE_QT = { 17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+			24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99 };
+
+	private static final byte[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final byte[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+
+	private static final byte[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+	private static final byte[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+
+	private static final byte[] AC_LUMINANCE_VALUES = bytes(0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21,
+			0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1,
+			0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+			0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+			0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93,
+			0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3,
+			0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+			0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1,
+			0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa);
+
+	private static final byte[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+
+	private static final byte[] AC_CHROMINANCE_VALUES = bytes(0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31,
+			0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1,
+			0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+			0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47,
+			0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+			0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a,
+			0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa,
+			0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+			0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+			0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa);
+
+	private static final HuffmanTable DC_LUMINANCE = new HuffmanTable(DC_LUMINANCE_BITS, DC_VALUES);
+
+	private static final HuffmanTable DC_CHROMINANCE = new HuffmanTable(DC_CHROMINANCE_BITS, DC_VALUES);
+
+	private static final HuffmanTable AC_LUMINANCE = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+
+	private static final HuffmanTable AC_CHROMINANCE = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+	/** DCT basis: C[u][x] stored at [x * 8 + u], so row x is a vector over u */
+	private static final float[] BASIS_T = new float[64];
+
+	/** DCT basis: C[v][y] stored at [v * 8 + y] */
+	private static final float[] BASIS = new float[64];
+
+	static {
+		for (int u = 0; u < 8; u++)
+			for (int x = 0; x < 8; x++) {
+				double c = (u == 0 ? Math.sqrt(0.125) : 0.5) * Math.cos((2 * x + 1) * u * Math.PI / 16);
+				BASIS_T[x * 8 + u] = (float) c;
+				BASIS[u * 8 + x] = (float) c;
+			}
+	}
+
+	private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private VectorJpegEncoder() {
+	}
+
+	/**
+	 * Encodes <code>bi</code> as baseline JPEG with the given IJG style
+	 * quality (1..100).
+	 */
+	static void encode(BufferedImage bi, int quality, OutputStream out) throws IOException {
+		State s = STATE.get();
+		s.setQuality(quality);
+		s.len = 0;
+		boolean gray = bi.getColorModel().getNumComponents() == 1;
+		writeHeaders(s, bi.getWidth(), bi.getHeight(), gray);
+		s.acc = 0;
+		s.bits = 0;
+		s.dcPred[0] = s.dcPred[1] = s.dcPred[2] = 0;
+		if (gray)
+			encodeGray(s, bi);
+		else
+			encodeColor(s, bi);
+		s.flushBits();
+		s.put(0xff);
+		s.put(0xd9);
+		out.write(s.out, 0, s.len);
+	}
+
+	private static void encodeGray(State s, BufferedImage bi) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		int pw = (w + 7) & ~7;
+		float[] y = s.plane(0, 8 * pw);
+		Raster raster = bi.getRaster();
+		byte[] data = null;
+		int offset = 0, stride = 0;
+		if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+				&& ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() == 1) {
+			ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+			data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			offset = raster.getDataBuffer().getOffset() + sm.getOffset(
+					-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+			stride = sm.getScanlineStride();
+		}
+		int[] row = s.row(w);
+		for (int my = 0; my < h; my += 8) {
+			for (int ry = 0; ry < 8; ry++) {
+				int sy = Math.min(my + ry, h - 1);
+				int off = ry * pw;
+				if (data != null) {
+					for (int x = 0, i = offset + sy * stride; x < w; x++)
+						y[off + x] = (data[i + x] & 0xff) - 128f;
+				} else {
+					raster.getSamples(0, sy, w, 1, 0, row);
+					for (int x = 0; x < w; x++)
+						y[off + x] = row[x] - 128f;
+				}
+				for (int x = w; x < pw; x++)
+					y[off + x] = y[off + w - 1];
+			}
+			for (int mx = 0; mx < pw; mx += 8)
+				encodeBlock(s, y, mx, pw, s.lumaQt, 0, DC_LUMINANCE, AC_LUMINANCE);
+		}
+	}
+
+	private static void encodeColor(State s, BufferedImage bi) {
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		int pw = (w + 15) & ~15;
+		int cw = pw >> 1;
+		float[] y = s.plane(0, 16 * pw);
+		float[] cb = s.plane(1, 16 * pw);
+		float[] cr = s.plane(2, 16 * pw);
+		float[] cb2 = s.plane(3, 8 * cw);
+		float[] cr2 = s.plane(4, 8 * cw);
+		int[] data = null;
+		int offset = 0, stride = 0;
+		Raster raster = bi.getRaster();
+		if ((bi.getType() == BufferedImage.TYPE_INT_RGB || bi.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& raster.getDataBuffer() instanceof DataBufferInt
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+			data = ((DataBufferInt) raster.getDataBuffer()).getData();
+			stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * stride
+					- raster.getSampleModelTranslateX();
+		}
+		int[] row = s.row(w);
+		for (int my = 0; my < h; my += 16) {
+			for (int ry = 0; ry < 16; ry++) {
+				int sy = Math.min(my + ry, h - 1);
+				int off = ry * pw;
+				if (data != null) {
+					ColorKernels.rgbToYCbCr(data, offset + sy * stride, w, y, cb, cr, off);
+				} else {
+					bi.getRGB(0, sy, w, 1, row, 0, w);
+					ColorKernels.rgbToYCbCr(row, 0, w, y, cb, cr, off);
+				}
+				for (int x = w; x < pw; x++) {
+					y[off + x] = y[off + w - 1];
+					cb[off + x] = cb[off + w - 1];
+					cr[off + x] = cr[off + w - 1];
+				}
+			}
+			downsample(cb, cb2, pw);
+			downsample(cr, cr2, pw);
+			for (int mx = 0; mx < pw; mx += 16) {
+				encodeBlock(s, y, mx, pw, s.lumaQt, 0, DC_LUMINANCE, AC_LUMINANCE);
+				encodeBlock(s, y, mx + 8, pw, s.lumaQt, 0, DC_LUMINANCE, AC_LUMINANCE);
+				encodeBlock(s, y, 8 * pw + mx, pw, s.lumaQt, 0, DC_LUMINANCE, AC_LUMINANCE);
+				encodeBlock(s, y, 8 * pw + mx + 8, pw, s.lumaQt, 0, DC_LUMINANCE, AC_LUMINANCE);
+				encodeBlock(s, cb2, mx >> 1, cw, s.chromaQt, 1, DC_CHROMINANCE, AC_CHROMINANCE);
+				encodeBlock(s, cr2, mx >> 1, cw, s.chromaQt, 2, DC_CHROMINANCE, AC_CHROMINANCE);
+			}
+		}
+	}
+
+	/** averages 2x2 samples of a 16 row strip into an 8 row strip */
+	private static void downsample(float[] src, float[] dst, int pw) {
+		int cw = pw >> 1;
+		for (int ry = 0; ry < 8; ry++) {
+			int s0 = 2 * ry * pw;
+			int s1 = s0 + pw;
+			int d = ry * cw;
+			for (int x = 0; x < cw; x++)
+				dst[d + x] = 0.25f * (src[s0 + 2 * x] + src[s0 + 2 * x + 1] + src[s1 + 2 * x] + src[s1 + 2 * x + 1]);
+		}
+	}
+
+	private static void encodeBlock(State s, float[] plane, int off, int stride, float[] qt, int comp,
+			HuffmanTable dc, HuffmanTable ac) {
+		int[] coef = s.coef;
+		fdctQuantize(plane, off, stride, s.tmp, qt, coef);
+		int diff = coef[0] - s.dcPred[comp];
+		s.dcPred[comp] = coef[0];
+		int nbits = bitLength(diff);
+		s.emit(dc.code[nbits], dc.size[nbits]);
+		if (nbits != 0)
+			s.emit(diff < 0 ? diff - 1 : diff, nbits);
+		int run = 0;
+		for (int k = 1; k < 64; k++) {
+			int v = coef[ZIGZAG[k]];
+			if (v == 0) {
+				run++;
+				continue;
+			}
+			while (run > 15) {
+				s.emit(ac.code[0xf0], ac.size[0xf0]);
+				run -= 16;
+			}
+			nbits = bitLength(v);
+			int sym = (run << 4) | nbits;
+			s.emit(ac.code[sym], ac.size[sym]);
+			s.emit(v < 0 ? v - 1 : v, nbits);
+			run = 0;
+		}
+		if (run > 0)
+			s.emit(ac.code[0], ac.size[0]);
+	}
+
+	/**
+	 * Separable 8x8 forward DCT as two vector matrix products, followed by
+	 * quantization with rounding to nearest.
+	 *
+	 * @param qt
+	 *            reciprocals of the quantization table in natural order
+	 * @param coef
+	 *            quantized coefficients in natural order
+	 */
+	static void fdctQuantize(float[] plane, int off, int stride, float[] tmp, float[] qt, int[] coef) {
+		for (int y = 0; y < 8; y++) {
+			int row = off + y * stride;
+			FloatVector acc = FloatVector.zero(DCT);
+			for (int x = 0; x < 8; x++)
+				acc = FloatVector.fromArray(DCT, BASIS_T, x * 8).fma(FloatVector.broadcast(DCT, plane[row + x]), acc);
+			acc.intoArray(tmp, y * 8);
+		}
+		FloatVector half = FloatVector.broadcast(DCT, 0.5f);
+		FloatVector minusHalf = FloatVector.broadcast(DCT, -0.5f);
+		for (int v = 0; v < 8; v++) {
+			FloatVector acc = FloatVector.zero(DCT);
+			for (int y = 0; y < 8; y++)
+				acc = FloatVector.fromArray(DCT, tmp, y * 8).fma(FloatVector.broadcast(DCT, BASIS[v * 8 + y]), acc);
+			FloatVector q = acc.mul(FloatVector.fromArray(DCT, qt, v * 8));
+			VectorMask<Float> negative = q.compare(VectorOperators.LT, 0f);
+			q = q.add(half.blend(minusHalf, negative));
+			q.convert(VectorOperators.F2I, 0).reinterpretAsInts().intoArray(coef, v * 8);
+		}
+	}
+
+	private static int bitLength(int v) {
+		return 32 - Integer.numberOfLeadingZeros(v < 0 ? -v : v);
+	}
+
+	private static void writeHeaders(State s, int w, int h, boolean gray) {
+		s.put(0xff);
+		s.put(0xd8);
+		// APP0 JFIF
+		s.put(0xff);
+		s.put(0xe0);
+		s.put16(16);
+		s.put('J');
+		s.put('F');
+		s.put('I');
+		s.put('F');
+		s.put(0);
+		s.put16(0x0101);
+		s.put(0);
+		s.put16(1);
+		s.put16(1);
+		s.put(0);
+		s.put(0);
+		writeQuantizationTable(s, 0, s.lumaQtValues);
+		if (!gray)
+			writeQuantizationTable(s, 1, s.chromaQtValues);
+		// SOF0
+		int nc = gray ? 1 : 3;
+		s.put(0xff);
+		s.put(0xc0);
+		s.put16(8 + 3 * nc);
+		s.put(8);
+		s.put16(h);
+		s.put16(w);
+		s.put(nc);
+		s.put(1);
+		s.put(gray ? 0x11 : 0x22);
+		s.put(0);
+		if (!gray) {
+			s.put(2);
+			s.put(0x11);
+			s.put(1);
+			s.put(3);
+			s.put(0x11);
+			s.put(1);
+		}
+		writeHuffmanTable(s, 0x00, DC_LUMINANCE_BITS, DC_VALUES);
+		writeHuffmanTable(s, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+		if (!gray) {
+			writeHuffmanTable(s, 0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+			writeHuffmanTable(s, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+		}
+		// SOS
+		s.put(0xff);
+		s.put(0xda);
+		s.put16(6 + 2 * nc);
+		s.put(nc);
+		s.put(1);
+		s.put(0x00);
+		if (!gray) {
+			s.put(2);
+			s.put(0x11);
+			s.put(3);
+			s.put(0x11);
+		}
+		s.put(0);
+		s.put(63);
+		s.put(0);
+	}
+
+	private static void writeQuantizationTable(State s, int id, int[] qt) {
+		s.put(0xff);
+		s.put(0xdb);
+		s.put16(67);
+		s.put(id);
+		for (int k = 0; k < 64; k++)
+			s.put(qt[ZIGZAG[k]]);
+	}
+
+	private static void writeHuffmanTable(State s, int id, byte[] bits, byte[] values) {
+		s.put(0xff);
+		s.put(0xc4);
+		s.put16(3 + 16 + values.length);
+		s.put(id);
+		for (byte b : bits)
+			s.put(b);
+		for (byte b : values)
+			s.put(b);
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) values[i];
+		return b;
+	}
+
+	/** code and size per symbol, derived as in Annex C */
+	private static final class HuffmanTable {
+
+		final int[] code = new int[256];
+		final int[] size = new int[256];
+
+		HuffmanTable(byte[] bits, byte[] values) {
+			int c = 0;
+			int k = 0;
+			for (int len = 1; len <= 16; len++) {
+				for (int i = 0; i < bits[len - 1]; i++) {
+					int sym = values[k++] & 0xff;
+					code[sym] = c++;
+					size[sym] = len;
+				}
+				c <<= 1;
+			}
+		}
+	}
+
+	private static final class State {
+
+		final float[][] planes = new float[5][];
+		final float[] tmp = new float[64];
+		final int[] coef = new int[64];
+		final int[] dcPred = new int[3];
+		final int[] lumaQtValues = new int[64];
+		final int[] chromaQtValues = new int[64];
+		final float[] lumaQt = new float[64];
+		final float[] chromaQt = new float[64];
+		int quality = -1;
+		int[] row = new int[0];
+		byte[] out = new byte[1 << 16];
+		int len;
+		long acc;
+		int bits;
+
+		float[] plane(int i, int size) {
+			if (planes[i] == null || planes[i].length < size)
+				planes[i] = new float[size];
+			return planes[i];
+		}
+
+		int[] row(int size) {
+			if (row.length < size)
+				row = new int[size];
+			return row;
+		}
+
+		void setQuality(int quality) {
+			if (this.quality == quality)
+				return;
+			int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+			for (int i = 0; i < 64; i++) {
+				lumaQtValues[i] = Math.min(Math.max((LUMINANCE_QT[i] * scale + 50) / 100, 1), 255);
+				chromaQtValues[i] = Math.min(Math.max((CHROMINANCE_QT[i] * scale + 50) / 100, 1), 255);
+				lumaQt[i] = 1f / lumaQtValues[i];
+				chromaQt[i] = 1f / chromaQtValues[i];
+			}
+			this.quality = quality;
+		}
+
+		void put(int b) {
+			if (len == out.length) {
+				byte[] grown = new byte[out.length << 1];
+				System.arraycopy(out, 0, grown, 0, len);
+				out = grown;
+			}
+			out[len++] = (byte) b;
+		}
+
+		void put16(int v) {
+			put(v >> 8);
+			put(v);
+		}
+
+		void emit(int code, int size) {
+			acc = (acc << size) | (code & ((1 << size) - 1));
+			bits += size;
+			while (bits >= 8) {
+				int b = (int) (acc >> (bits - 8)) & 0xff;
+				put(b);
+				if (b == 0xff)
+					put(0);
+				bits -= 8;
+			}
+		}
+
+		void flushBits() {
+			if (bits > 0)
+				emit(0x7f, 8 - bits);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * ImageIO front end of {@link VectorJpegEncoder}, selected by
+ * <code>-E VectorJpegImageWriter</code>. Only the compression quality of the
+ * write parameters is honored; metadata is ignored. Images the provider
+ * cannot encode, and rasters, are rejected.
+ */
+public class VectorJpegImageWriter extends ImageWriter {
+
+	public VectorJpegImageWriter(ImageWriterSpi originatingProvider) {
+		super(originatingProvider);
+	}
+
+	@Override
+	public ImageWriteParam getDefaultWriteParam() {
+		return new JPEGImageWriteParam(getLocale());
+	}
+
+	@Override
+	public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType,
+			ImageWriteParam param) {
+		return null;
+	}
+
+	@Override
+	public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+		if (!(getOutput() instanceof ImageOutputStream))
+			throw new IllegalStateException("Output not set");
+		final ImageOutputStream ios = (ImageOutputStream) getOutput();
+		if (image == null)
+			throw new IllegalArgumentException("image == null");
+		if (image.hasRaster())
+			throw new IIOException("Writing rasters is not supported");
+		RenderedImage ri = image.getRenderedImage();
+		if (getOriginatingProvider() != null && !getOriginatingProvider().canEncodeImage(ri))
+			throw new IIOException("Unsupported image: " + ri.getSampleModel().getNumBands() + " bands of "
+					+ ri.getSampleModel().getSampleSize(0) + " bits");
+		BufferedImage bi;
+		if (ri instanceof BufferedImage) {
+			bi = (BufferedImage) ri;
+		} else {
+			bi = new BufferedImage(ri.getColorModel(), ri.copyData(null), ri.getColorModel().isAlphaPremultiplied(),
+					null);
+		}
+		float quality = param != null && param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT
+				? param.getCompressionQuality() : 0.75f;
+		processImageStarted(0);
+		VectorJpegEncoder.encode(bi, Math.min(Math.max(Math.round(quality * 100), 1), 100), new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				ios.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ios.write(b, off, len);
+			}
+		});
+		processImageComplete();
+	}
+}
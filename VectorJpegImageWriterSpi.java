@@ -0,0 +1,68 @@
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Provider of {@link VectorJpegImageWriter}. It is not registered through
+ * <code>META-INF/services</code>, because the encoder needs the incubating
+ * <code>jdk.incubator.vector</code> module; {@link #registerIfSupported}
+ * registers it only if that module was added to the boot layer and the CPU
+ * has 256 bit vectors, ordered after the JDK JPEG writer so it is never
+ * picked by default.
+ */
+public class VectorJpegImageWriterSpi extends ImageWriterSpi {
+
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+	public VectorJpegImageWriterSpi() {
+		super("dcm2mp4", "1.0", new String[] { "jpeg", "JPEG", "jpg", "JPG" }, new String[] { "jpg", "jpeg" },
+				new String[] { "image/jpeg" }, VectorJpegImageWriter.class.getName(),
+				new Class<?>[] { ImageOutputStream.class }, null, false, null, null, null, null, false, null, null,
+				null, null);
+	}
+
+	public static synchronized boolean registerIfSupported() {
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent() || !VectorJpegEncoder.isNative())
+			return false;
+		IIORegistry registry = IIORegistry.getDefaultInstance();
+		if (registry.getServiceProviderByClass(VectorJpegImageWriterSpi.class) != null)
+			return true;
+		VectorJpegImageWriterSpi spi = new VectorJpegImageWriterSpi();
+		registry.registerServiceProvider(spi, ImageWriterSpi.class);
+		for (Iterator<ImageWriterSpi> it = registry.getServiceProviders(ImageWriterSpi.class, true); it.hasNext();) {
+			ImageWriterSpi other = it.next();
+			if (other != spi && other.getMIMETypes() != null
+					&& Arrays.asList(other.getMIMETypes()).contains("image/jpeg"))
+				registry.setOrdering(ImageWriterSpi.class, other, spi);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean canEncodeImage(ImageTypeSpecifier type) {
+		ColorModel cm = type.getColorModel();
+		if (cm instanceof IndexColorModel)
+			return true;
+		int bands = type.getSampleModel().getNumBands();
+		return (bands == 1 || bands == 3 || bands == 4) && type.getSampleModel().getSampleSize(0) <= 8
+				|| cm.getNumComponents() >= 3 && type.getBufferedImageType() != 0;
+	}
+
+	@Override
+	public ImageWriter createWriterInstance(Object extension) {
+		return new VectorJpegImageWriter(this);
+	}
+
+	@Override
+	public String getDescription(Locale locale) {
+		return "Baseline JPEG writer using the Vector API";
+	}
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Daemon mode converting DICOM files as they arrive in an inbox directory.
+ * The inbox and its subdirectories are watched with a {@link WatchService};
+ * a file is handed to the {@link BatchScheduler} once it is complete, which is
+ * when its size and modification time have not changed for the settle time.
+ * Every event on a file restarts its settle time, so a file written in many
+ * chunks is converted once. If the sender moves complete files into the
+ * inbox, a settle time of 0 converts them on arrival. Names starting with '.'
+ * or ending with <code>.part</code> or <code>.tmp</code> are in-progress
+ * uploads and are ignored until renamed.
+ *
+ * Converted files are appended to a journal in the destination directory,
+ * with their size and modification time; on start the journal is read back
+ * and the inbox is rescanned, so files that arrived while the daemon was down
+ * are converted and files converted before are never converted again. A file
+ * that is replaced by one with a different size or modification time is
+ * converted again. Only files still in the inbox are remembered: the journal
+ * is compacted to them on start, and deleted files are forgotten while
+ * running.
+ */
+public class WatchFolder implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(WatchFolder.class);
+
+	static final String JOURNAL = ".dcm2mp4-processed";
+
+	private final Path inbox;
+
+	private final Path dest;
+
+	private final BatchScheduler scheduler;
+
+	private final long settleNanos;
+
+	private final WatchService watcher;
+
+	private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+
+	/** files seen but not yet settled, accessed by the watch thread only */
+	private final Map<Path, Candidate> candidates = new HashMap<Path, Candidate>();
+
+	/**
+	 * signatures of converted, converting and failed files in the inbox by
+	 * path, accessed by the watch thread only
+	 */
+	private final Map<Path, String> seen = new HashMap<Path, String>();
+
+	private final FileChannel journal;
+
+	private volatile boolean closed;
+
+	public WatchFolder(File inbox, File dest, BatchScheduler scheduler, long settleMillis) throws IOException {
+		this.inbox = inbox.toPath().toAbsolutePath().normalize();
+		this.dest = dest.toPath().toAbsolutePath().normalize();
+		this.scheduler = scheduler;
+		this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+		Files.createDirectories(this.dest);
+		Path journalPath = this.dest.resolve(JOURNAL);
+		if (Files.exists(journalPath))
+			readJournal(journalPath);
+		this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		this.watcher = this.inbox.getFileSystem().newWatchService();
+	}
+
+	/**
+	 * Reads the signatures of the files still in the inbox unchanged, and
+	 * rewrites the journal with these only.
+	 */
+	private void readJournal(Path journalPath) throws IOException {
+		int lines = 0;
+		try (BufferedReader in = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+			for (String line; (line = in.readLine()) != null;) {
+				String[] fields = line.split("\t", 3);
+				if (fields.length < 3)
+					continue;
+				lines++;
+				Path path = inbox.resolve(fields[2]);
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+					if (line.equals(signature(path, attrs.size(), attrs.lastModifiedTime().toMillis())))
+						seen.put(path, line);
+				} catch (IOException e) {
+					// no longer in the inbox
+				}
+			}
+		}
+		Path tmp = journalPath.resolveSibling(JOURNAL + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for (String signature : seen.values()) {
+				out.write(signature);
+				out.write('\n');
+			}
+		}
+		Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.info("Read {} converted files from {}, {} of them still in the inbox", lines, journalPath, seen.size());
+	}
+
+	/**
+	 * Watches the inbox until {@link #stop} is called from another thread.
+	 * Conversions scheduled until then may still be running on return.
+	 */
+	public void run() throws IOException, InterruptedException {
+		register(inbox);
+		log.info("Watching {}, settle time {} ms", inbox, TimeUnit.NANOSECONDS.toMillis(settleNanos));
+		try {
+			while (!closed) {
+				WatchKey key = candidates.isEmpty() ? watcher.take()
+						: watcher.poll(pollNanos(), TimeUnit.NANOSECONDS);
+				while (key != null) {
+					processEvents(key);
+					key = watcher.poll();
+				}
+				checkCandidates();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private long pollNanos() {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		for (Candidate c : candidates.values())
+			next = Math.min(next, c.lastChange + settleNanos - now);
+		return Math.max(next, TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	private void processEvents(WatchKey key) throws IOException {
+		Path dir = dirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				log.warn("Lost events, rescanning {}", inbox);
+				seen.keySet().removeIf(p -> !Files.exists(p));
+				scan(inbox);
+				continue;
+			}
+			if (dir == null)
+				continue;
+			Path path = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				candidates.remove(path);
+				forget(path);
+			} else if (path.startsWith(dest)) {
+				continue;
+			} else if (Files.isDirectory(path)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+					register(path);
+			} else {
+				offer(path);
+			}
+		}
+		if (!key.reset())
+			dirs.remove(key);
+	}
+
+	/** registers the directory and its subdirectories, and offers their files */
+	private void register(Path dir) throws IOException {
+		dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE), dir);
+		// files created before the directory was registered have no events
+		scan(dir);
+	}
+
+	private void scan(Path dir) throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path path : entries) {
+				if (path.startsWith(dest))
+					continue;
+				if (Files.isDirectory(path)) {
+					if (dirs.containsValue(path))
+						scan(path);
+					else
+						register(path);
+				} else {
+					offer(path);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// removed meanwhile
+		}
+	}
+
+	/** forgets the signatures of a deleted file or directory */
+	private void forget(Path path) {
+		if (seen.remove(path) == null && !ignored(path))
+			seen.keySet().removeIf(p -> p.startsWith(path));
+	}
+
+	private static boolean ignored(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(".") || name.endsWith(".part") || name.endsWith(".tmp");
+	}
+
+	private void offer(Path path) {
+		if (ignored(path))
+			return;
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			candidates.remove(path);
+			return;
+		}
+		Candidate c = candidates.get(path);
+		if (c == null)
+			candidates.put(path, c = new Candidate());
+		c.size = attrs.size();
+		c.modified = attrs.lastModifiedTime().toMillis();
+		c.lastChange = System.nanoTime();
+		if (settleNanos == 0)
+			checkCandidates();
+	}
+
+	private void checkCandidates() {
+		long now = System.nanoTime();
+		for (Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, Candidate> entry = it.next();
+			Path path = entry.getKey();
+			Candidate c = entry.getValue();
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (IOException e) {
+				it.remove();
+				continue;
+			}
+			long size = attrs.size();
+			long modified = attrs.lastModifiedTime().toMillis();
+			if (size != c.size || modified != c.modified) {
+				c.size = size;
+				c.modified = modified;
+				if (settleNanos > 0) {
+					c.lastChange = now;
+					continue;
+				}
+			}
+			if (now - c.lastChange < settleNanos)
+				continue;
+			it.remove();
+			convert(path, size, modified);
+		}
+	}
+
+	private void convert(Path path, long size, long modified) {
+		final String signature = signature(path, size, modified);
+		if (signature.equals(seen.put(path, signature)))
+			return;
+		Path outDir = dest.resolve(inbox.relativize(path).toString());
+		scheduler.convertFile(path.toFile(), outDir.toFile()).whenComplete((v, e) -> {
+			// failed files are retried after a restart or when they change
+			if (e == null)
+				journal(signature);
+		});
+	}
+
+	private String signature(Path path, long size, long modified) {
+		return size + "\t" + modified + "\t" + inbox.relativize(path);
+	}
+
+	private synchronized void journal(String signature) {
+		if (!journal.isOpen())
+			return;
+		try {
+			journal.write(ByteBuffer.wrap((signature + "\n").getBytes(StandardCharsets.UTF_8)));
+			journal.force(false);
+		} catch (IOException e) {
+			log.warn("Failed to record converted file {}:", signature, e);
+		}
+	}
+
+	/**
+	 * Stops watching; {@link #run} returns.
+	 */
+	public void stop() throws IOException {
+		closed = true;
+		watcher.close();
+	}
+
+	/**
+	 * Stops watching and closes the journal. Call after the scheduled
+	 * conversions have completed, later completions are not recorded.
+	 */
+	@Override
+	public void close() throws IOException {
+		stop();
+		synchronized (this) {
+			journal.close();
+		}
+	}
+
+	private static final class Candidate {
+		long size;
+		long modified;
+		long lastChange;
+	}
+}
@@ -0,0 +1,9 @@
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("dcm2mp4.WriteStall")
+@Label("Write Stall")
+@Description("Converting thread blocked because too many output writes are outstanding")
+class WriteStallEvent extends ConversionEvent {
+}